@@ -0,0 +1,69 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Key generation and keystore import of DummyKeystore
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DummyKeystoreBenchmark {
+    /** key algorithm and size */
+    @Param({"RSA-2048", "RSA-4096", "EC-256"})
+    public String key;
+
+    private String keyAlgorithm;
+    private int keySize;
+    private byte[] pfxBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        String[] algSize = key.split("-");
+        keyAlgorithm = algSize[0];
+        keySize = Integer.parseInt(algSize[1]);
+
+        DummyKeystore dk = new DummyKeystore("storePass");
+        dk.addEntry("keyAlias", "keyPass", keyAlgorithm, keySize, 24);
+        File tmp = File.createTempFile("benchmark", ".pfx");
+        try {
+            dk.save(tmp, "storePass");
+            pfxBytes = Files.readAllBytes(tmp.toPath());
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    @Benchmark
+    public DummyKeystore addEntry() throws Exception {
+        DummyKeystore dk = new DummyKeystore("storePass");
+        dk.addEntry("keyAlias", "keyPass", keyAlgorithm, keySize, 24);
+        return dk;
+    }
+
+    @Benchmark
+    public DummyKeystore importKeystore() throws Exception {
+        DummyKeystore dk = new DummyKeystore("storePass");
+        dk.importKeystore(new ByteArrayInputStream(pfxBytes), "storePass", "keyPass", a -> "keyPass");
+        return dk;
+    }
+}
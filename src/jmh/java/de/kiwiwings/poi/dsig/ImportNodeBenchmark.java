@@ -0,0 +1,69 @@
+package de.kiwiwings.poi.dsig;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.ooxml.util.DocumentHelper;
+import org.etsi.uri.x01903.v13.DataObjectFormatType;
+import org.etsi.uri.x01903.v13.QualifyingPropertiesDocument;
+import org.etsi.uri.x01903.v13.QualifyingPropertiesType;
+import org.etsi.uri.x01903.v13.SignedPropertiesType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Compares the XmlBeans to DOM conversion of a QualifyingProperties tree with many DataObjectFormat entries
+ * by the cursor loop of XAdES2SignatureFacet and by Document.importNode
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImportNodeBenchmark {
+    @Param({"10", "1000"})
+    public int dataObjectFormats;
+
+    private QualifyingPropertiesType qualifyingProperties;
+
+    @Setup
+    public void setup() {
+        QualifyingPropertiesDocument qualDoc = QualifyingPropertiesDocument.Factory.newInstance();
+        qualifyingProperties = qualDoc.addNewQualifyingProperties();
+        qualifyingProperties.setTarget("#idPackageSignature");
+        SignedPropertiesType signedProperties = qualifyingProperties.addNewSignedProperties();
+        signedProperties.setId("idSignedProperties");
+        signedProperties.addNewSignedSignatureProperties().setSigningTime(java.util.Calendar.getInstance());
+        List<DataObjectFormatType> dofs = signedProperties.addNewSignedDataObjectProperties().getDataObjectFormatList();
+        for (int i=0; i<dataObjectFormats; i++) {
+            DataObjectFormatType dof = DataObjectFormatType.Factory.newInstance();
+            dof.setObjectReference("#idPackageObject" + i);
+            dof.setMimeType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet+xml");
+            dof.setDescription("part " + i);
+            dofs.add(dof);
+        }
+    }
+
+    @Benchmark
+    public Element cursorLoop() {
+        return XAdES2SignatureFacet.importNode(DocumentHelper.createDocument(), qualifyingProperties);
+    }
+
+    @Benchmark
+    public Element documentImportNode() {
+        Document document = DocumentHelper.createDocument();
+        return (Element)document.importNode(qualifyingProperties.getDomNode(), true);
+    }
+}
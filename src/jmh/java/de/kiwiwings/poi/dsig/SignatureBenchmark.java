@@ -0,0 +1,125 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import de.kiwiwings.poi.dsig.DummyKeystore.KeyCertPair;
+import org.apache.commons.io.output.UnsynchronizedByteArrayOutputStream;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
+import org.apache.poi.poifs.crypt.dsig.SignatureInfo;
+import org.apache.poi.poifs.crypt.dsig.facets.KeyInfoSignatureFacet;
+import org.apache.poi.poifs.crypt.dsig.facets.Office2010SignatureFacet;
+import org.apache.poi.poifs.crypt.dsig.facets.SignatureFacet;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SignatureInfo.confirmSignature on generated XLSX/DOCX packages with different facet combinations
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.apache.xml.security.ignoreLineBreaks=true")
+public class SignatureBenchmark {
+    @Param({"xlsx", "docx"})
+    public String type;
+
+    @Param({"small", "large"})
+    public String size;
+
+    /**
+     * OOXML = OOXML2SignatureFacet, KEYINFO = KeyInfoSignatureFacet, XADES = XAdES2SignatureFacet,
+     * OFFICE2010 = Office2010SignatureFacet (which needs the XAdES facet)
+     */
+    @Param({"OOXML", "OOXML_KEYINFO", "OOXML_KEYINFO_XADES", "OOXML_KEYINFO_XADES_OFFICE2010"})
+    public String facets;
+
+    private UnsynchronizedByteArrayOutputStream pkgBytes;
+    private SignatureInfo signatureInfo;
+
+    @Setup
+    public void setup() throws Exception {
+        DummyKeystore dk = new DummyKeystore("storePass");
+        KeyCertPair kcp = dk.addEntry("keyAlias", "keyPass", 2048, 24);
+
+        int count = "large".equals(size) ? 20_000 : 10;
+        pkgBytes = "xlsx".equals(type) ? createXlsx(count) : createDocx(count);
+
+        List<SignatureFacet> facetList = new ArrayList<>();
+        for (String f : facets.split("_")) {
+            switch (f) {
+                case "OOXML": facetList.add(new OOXML2SignatureFacet()); break;
+                case "KEYINFO": facetList.add(new KeyInfoSignatureFacet()); break;
+                case "XADES": facetList.add(new XAdES2SignatureFacet()); break;
+                case "OFFICE2010": facetList.add(new Office2010SignatureFacet()); break;
+                default: throw new IllegalArgumentException(f);
+            }
+        }
+
+        SignatureConfig signatureConfig = new SignatureConfig();
+        signatureConfig.setKey(kcp.getKey());
+        signatureConfig.setSigningCertificateChain(kcp.getX509Chain());
+        signatureConfig.setSignatureDescription("Purpose of signing this document");
+        signatureConfig.setSignatureFacets(facetList);
+
+        signatureInfo = new SignatureInfo();
+        signatureInfo.setSignatureConfig(signatureConfig);
+    }
+
+    @Benchmark
+    public OPCPackage confirmSignature() throws Exception {
+        try (OPCPackage opc = OPCPackage.open(pkgBytes.toInputStream())) {
+            signatureInfo.setOpcPackage(opc);
+            signatureInfo.confirmSignature();
+            return opc;
+        }
+    }
+
+    private static UnsynchronizedByteArrayOutputStream createXlsx(int rows) throws IOException {
+        UnsynchronizedByteArrayOutputStream bos = new UnsynchronizedByteArrayOutputStream();
+        try (XSSFWorkbook wb = new XSSFWorkbook()) {
+            XSSFSheet sh = wb.createSheet();
+            for (int r=0; r<rows; r++) {
+                Row row = sh.createRow(r);
+                for (int c=0; c<10; c++) {
+                    if (c % 2 == 0) {
+                        row.createCell(c).setCellValue(r * c);
+                    } else {
+                        row.createCell(c).setCellValue("cell " + r + "/" + c);
+                    }
+                }
+            }
+            wb.write(bos);
+        }
+        return bos;
+    }
+
+    private static UnsynchronizedByteArrayOutputStream createDocx(int paragraphs) throws IOException {
+        UnsynchronizedByteArrayOutputStream bos = new UnsynchronizedByteArrayOutputStream();
+        try (XWPFDocument doc = new XWPFDocument()) {
+            for (int p=0; p<paragraphs; p++) {
+                doc.createParagraph().createRun().setText("Paragraph " + p + " of the signed benchmark document.");
+            }
+            doc.write(bos);
+        }
+        return bos;
+    }
+}
@@ -0,0 +1,82 @@
+package de.kiwiwings.poi.xwpf;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.poi.xslf.draw.SVGImageRenderer;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SVG parsing, PNG fallback rendering and embedding of AddSvgToDocument
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class AddSvgToDocumentBenchmark {
+    @Param({"500", "2000"})
+    public double widthPx;
+
+    private File svgFile;
+    private SvgRenderCache cache;
+
+    @Setup
+    public void setup() throws Exception {
+        svgFile = File.createTempFile("chart", ".svg");
+        try (InputStream is = AddSvgToDocumentBenchmark.class.getResourceAsStream("/chart.svg")) {
+            Files.copy(is, svgFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        cache = new SvgRenderCache(16 << 20);
+    }
+
+    @TearDown
+    public void tearDown() {
+        svgFile.delete();
+    }
+
+    @Benchmark
+    public SVGImageRenderer loadSvg() throws Exception {
+        return AddSvgToDocument.loadSvg(svgFile);
+    }
+
+    @Benchmark
+    public void renderPng() throws Exception {
+        SVGImageRenderer rnd = AddSvgToDocument.loadSvg(svgFile);
+        double heightPx = widthPx * rnd.getNativeBounds().getHeight() / rnd.getNativeBounds().getWidth();
+        AddSvgToDocument.renderPng(rnd, widthPx, heightPx, NullOutputStream.NULL_OUTPUT_STREAM);
+    }
+
+    @Benchmark
+    public void embedAndWrite() throws Exception {
+        try (XWPFDocument doc = new XWPFDocument()) {
+            AddSvgToDocument.addSvgPicture(new MediaPartIndex(doc), svgFile, widthPx, null);
+            doc.write(NullOutputStream.NULL_OUTPUT_STREAM);
+        }
+    }
+
+    @Benchmark
+    public void embedCachedAndWrite() throws Exception {
+        try (XWPFDocument doc = new XWPFDocument()) {
+            AddSvgToDocument.addSvgPicture(new MediaPartIndex(doc), svgFile, widthPx, cache);
+            doc.write(NullOutputStream.NULL_OUTPUT_STREAM);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package de.kiwiwings.poi.xwpf;
+
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.poi.sl.usermodel.PictureData;
+import org.apache.poi.util.Dimension2DDouble;
+import org.apache.poi.xslf.draw.SVGImageRenderer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the PNG fallback encoders. The encoded size is reported by the secondary results "pngBytes"
+ * and "encodings" - JMH sums the counters of the iterations, so the size of one PNG is their ratio.
+ * The chart is anti-aliased and has more than 256 colors, the flat art is written as indexed image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PngFallbackEncoderBenchmark {
+    @Param({"chart", "flat"})
+    public String image;
+
+    @Param({"default", "fast", "small"})
+    public String encoder;
+
+    @Param({"500", "2000"})
+    public double widthPx;
+
+    private PngFallbackEncoder enc;
+    private BufferedImage rendered;
+
+    /**
+     * The encoded bytes and the number of encoded images of an iteration
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class EncodedSize {
+        public long pngBytes;
+        public long encodings;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            pngBytes = 0;
+            encodings = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        enc = PngFallbackEncoder.forId(encoder);
+        SVGImageRenderer rnd = new SVGImageRenderer();
+        try (InputStream is = PngFallbackEncoderBenchmark.class.getResourceAsStream("/" + image + ".svg")) {
+            rnd.loadImage(is, PictureData.PictureType.SVG.contentType);
+        }
+        double heightPx = widthPx * rnd.getNativeBounds().getHeight() / rnd.getNativeBounds().getWidth();
+        rendered = rnd.getImage(new Dimension2DDouble(widthPx, heightPx));
+    }
+
+    @Benchmark
+    public long encode(EncodedSize size) throws Exception {
+        CountingOutputStream cos = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+        enc.encode(rendered, cos);
+        size.pngBytes += cos.getByteCount();
+        size.encodings++;
+        return cos.getByteCount();
+    }
+}
@@ -1,12 +1,8 @@
 package de.kiwiwings.poi.dsig;
 
-import static java.util.Collections.singletonList;
-
 import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.PrivateKey;
-import java.security.cert.X509Certificate;
 import java.util.Arrays;
 
 import javax.xml.crypto.MarshalException;
@@ -42,31 +38,35 @@ public class AddSigV1Details {
         dk.addEntry(keyAlias, keyPass, 4096, 24);
         dk.save(new File("sigV1.pfx"), storePass);
 
-        // extracting private key and certificate
-        PrivateKey key = dk.getKey(keyAlias, keyPass);
-        X509Certificate x509 = dk.getFirstX509(keyAlias);
+        // the key is unlocked once for all signatures of the session
+        try (SignerSession session = new SignerSession(dk, keyAlias, keyPass, HashAlgorithm.sha1)) {
+            SignatureConfig signatureConfig = new SignatureConfig();
+            session.configure(signatureConfig);
+            signatureConfig.setSignatureDescription("Purpose of signing this document");
+            signatureConfig.setSignatureFacets(Arrays.asList(
+                new OOXML2SignatureFacet(),
+                new KeyInfoSignatureFacet(),
+                new XAdES2SignatureFacet(),
+                new Office2010SignatureFacet()
+            ));
+
+            // record the phase timings - the JFR events are only emitted within a flight recording
+            SigningHistogramReporter histogram = new SigningHistogramReporter();
+            SigningInstrumentation instrumentation = new SigningInstrumentation(histogram.andThen(new SigningJfrExporter()));
+            instrumentation.instrument(signatureConfig);
 
-        SignatureConfig signatureConfig = new SignatureConfig();
-        signatureConfig.setKey(key);
-        signatureConfig.setSigningCertificateChain(singletonList(x509));
-        signatureConfig.setDigestAlgo(HashAlgorithm.sha1);
-        signatureConfig.setSignatureDescription("Purpose of signing this document");
-        signatureConfig.setSignatureFacets(Arrays.asList(
-            new OOXML2SignatureFacet(),
-            new KeyInfoSignatureFacet(),
-            new XAdES2SignatureFacet(),
-            new Office2010SignatureFacet()
-        ));
+            try (OPCPackage opc = OPCPackage.open(bos.toInputStream())) {
 
-        try (OPCPackage opc = OPCPackage.open(bos.toInputStream())) {
+                SignatureInfo si = instrumentation.newSignatureInfo(session);
+                si.setOpcPackage(opc);
+                si.setSignatureConfig(signatureConfig);
 
-            SignatureInfo si = new SignatureInfo();
-            si.setOpcPackage(opc);
-            si.setSignatureConfig(signatureConfig);
+                si.confirmSignature();
 
-            si.confirmSignature();
+                opc.save(new File("sigV1.xlsx"));
+            }
 
-            opc.save(new File("sigV1.xlsx"));
+            histogram.report(System.out);
         }
     }
 }
@@ -0,0 +1,255 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+
+import org.apache.jcp.xml.dsig.internal.dom.DOMSignedInfo;
+import org.apache.poi.ooxml.util.DocumentHelper;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
+import org.apache.poi.poifs.crypt.dsig.SignatureInfo;
+import org.apache.poi.poifs.crypt.dsig.services.RevocationData;
+import org.apache.poi.poifs.crypt.dsig.services.RevocationDataService;
+import org.apache.poi.poifs.crypt.dsig.services.TimeStampSimpleHttpClient;
+import org.apache.poi.util.IOUtils;
+
+/**
+ * Non-blocking signing of OOXML packages.
+ *
+ * {@link SignatureInfo#confirmSignature()} runs the digest, the signing, the time-stamping and the retrieval of
+ * the revocation data in sequence on the calling thread. The async signer splits the signature into its stages:
+ * <ul>
+ * <li>the digesting and signing of the package (pre-sign) runs on the cpu executor. Meanwhile the revocation
+ * data of the signing chain is prefetched on the io executor.</li>
+ * <li>the post-sign, i.e. the XAdES-T/X-L time-stamps and the merging of the prefetched revocation data,
+ * runs on the io executor, so the cpu threads continue with the next package while waiting for the TSP.</li>
+ * <li>the package is saved on the cpu executor</li>
+ * </ul>
+ * The time-stamps can't overlap with the digest of the same package, as they are taken over the signature value.
+ *
+ * Like in the {@link BatchSigner} a {@link SignatureInfo} and its config are used by one package at a time, but as
+ * the stages change threads, they are pooled instead of bound to a thread. The pool size limits the number of
+ * packages in flight. The default TSP http client of the configs is replaced by a {@link SharedTimeStampHttpClient}.
+ */
+public class AsyncSigner implements Closeable {
+    private static final class Pending {
+        private final SignatureInfo signatureInfo;
+        private final OPCPackage pkg;
+        private DOMSignContext signContext;
+        private String signatureValue;
+        private RevocationDataService revocationDataService;
+
+        Pending(SignatureInfo signatureInfo, OPCPackage pkg) {
+            this.signatureInfo = signatureInfo;
+            this.pkg = pkg;
+        }
+    }
+
+    /**
+     * Serves the prefetched revocation data for the signing chain and delegates the other chains
+     */
+    private static final class PrefetchedRevocationData implements RevocationDataService {
+        private final List<X509Certificate> chain;
+        private final CompletableFuture<RevocationData> prefetch;
+        private final RevocationDataService delegate;
+
+        PrefetchedRevocationData(List<X509Certificate> chain, CompletableFuture<RevocationData> prefetch, RevocationDataService delegate) {
+            this.chain = chain;
+            this.prefetch = prefetch;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public RevocationData getRevocationData(List<X509Certificate> certificateChain) {
+            return chain.equals(certificateChain) ? prefetch.join() : delegate.getRevocationData(certificateChain);
+        }
+    }
+
+    @FunctionalInterface
+    private interface PackageOpener {
+        OPCPackage open() throws Exception;
+    }
+
+    private final BlockingQueue<SignatureInfo> signers;
+    private final ExecutorService cpuExecutor;
+    private final ExecutorService ioExecutor;
+
+    /**
+     * @param configFactory creates the configs of the pooled signers
+     * @param cpuThreads the number of threads, which digest, sign and save the packages
+     * @param maxPending the number of packages in flight - should be greater than cpuThreads, so that the cpu
+     *  threads don't wait for the packages in the time-stamp stage
+     */
+    public AsyncSigner(Supplier<SignatureConfig> configFactory, int cpuThreads, int maxPending) {
+        this(configFactory, SignatureInfo::new, cpuThreads, maxPending);
+    }
+
+    /**
+     * @param configFactory creates the configs of the pooled signers
+     * @param signatureInfoFactory creates the pooled signers, e.g. {@link SigningInstrumentation#newSignatureInfo()}
+     * @param cpuThreads the number of threads, which digest, sign and save the packages
+     * @param maxPending the number of packages in flight
+     */
+    public AsyncSigner(Supplier<SignatureConfig> configFactory, Supplier<SignatureInfo> signatureInfoFactory, int cpuThreads, int maxPending) {
+        signers = new ArrayBlockingQueue<>(maxPending);
+        for (int i=0; i<maxPending; i++) {
+            SignatureConfig config = configFactory.get();
+            TimeStampSimpleHttpClient tspClient = config.getTspHttpClient() instanceof TimeStampSimpleHttpClient
+                ? (TimeStampSimpleHttpClient)config.getTspHttpClient() : null;
+            // keep customized clients and the settings, which the shared client doesn't support
+            boolean defaultClient = tspClient != null && tspClient.getClass() == TimeStampSimpleHttpClient.class;
+            if (defaultClient && !tspClient.isIgnoreHttpsCertificates() && (config.getProxyUrl() == null || config.getProxyUrl().isEmpty())) {
+                SharedTimeStampHttpClient sharedClient = new SharedTimeStampHttpClient();
+                sharedClient.setFollowRedirects(tspClient.isFollowRedirects());
+                config.setTspHttpClient(sharedClient);
+            }
+            SignatureInfo si = signatureInfoFactory.get();
+            si.setSignatureConfig(config);
+            signers.add(si);
+        }
+
+        AtomicInteger cpuIdx = new AtomicInteger();
+        cpuExecutor = Executors.newFixedThreadPool(cpuThreads, r -> {
+            Thread t = new Thread(r, "AsyncSigner-cpu-" + cpuIdx.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        // the io tasks mostly wait for the network, so they aren't limited by a fixed pool
+        AtomicInteger ioIdx = new AtomicInteger();
+        ioExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "AsyncSigner-io-" + ioIdx.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Signs the package - the package must not be accessed until the future is completed
+     *
+     * @return the future, which completes when the signature is added to the package
+     */
+    public CompletableFuture<Void> sign(OPCPackage pkg) {
+        return sign(() -> pkg).thenAccept(p -> {});
+    }
+
+    /**
+     * Signs the source package and saves it to the target
+     *
+     * @return the future, which completes with the target path when the package is saved
+     */
+    public CompletableFuture<Path> sign(Path source, Path target) {
+        AtomicReference<OPCPackage> opened = new AtomicReference<>();
+        CompletableFuture<Pending> signed = sign(() -> {
+            try (InputStream is = Files.newInputStream(source)) {
+                opened.set(OPCPackage.open(is));
+                return opened.get();
+            }
+        });
+        return signed.thenApplyAsync(p -> {
+            try (OutputStream os = Files.newOutputStream(target)) {
+                p.pkg.save(os);
+                return target;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, cpuExecutor).whenComplete((t, e) -> {
+            if (opened.get() != null) {
+                IOUtils.closeQuietly(opened.get());
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        cpuExecutor.shutdown();
+        ioExecutor.shutdown();
+        try {
+            if (!cpuExecutor.awaitTermination(1, TimeUnit.MINUTES) || !ioExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                cpuExecutor.shutdownNow();
+                ioExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            cpuExecutor.shutdownNow();
+            ioExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<Pending> sign(PackageOpener opener) {
+        return CompletableFuture
+            .supplyAsync(() -> preSign(opener), cpuExecutor)
+            .thenApplyAsync(this::postSign, ioExecutor);
+    }
+
+    private Pending preSign(PackageOpener opener) {
+        SignatureInfo si;
+        try {
+            si = signers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+
+        SignatureConfig config = si.getSignatureConfig();
+        try {
+            OPCPackage pkg = opener.open();
+            Pending p = new Pending(si, pkg);
+
+            RevocationDataService rds = config.getRevocationDataService();
+            if (rds != null) {
+                // the revocation data only depends on the chain, so it's fetched while the package is digested
+                List<X509Certificate> chain = config.getSigningCertificateChain();
+                CompletableFuture<RevocationData> prefetch = CompletableFuture.supplyAsync(() -> rds.getRevocationData(chain), ioExecutor);
+                p.revocationDataService = rds;
+                config.setRevocationDataService(new PrefetchedRevocationData(chain, prefetch, rds));
+            }
+
+            si.setOpcPackage(pkg);
+            p.signContext = si.createXMLSignContext(DocumentHelper.createDocument());
+            DOMSignedInfo signedInfo = si.preSign(p.signContext);
+            p.signatureValue = si.signDigest(p.signContext, signedInfo);
+            return p;
+        } catch (Exception e) {
+            if (config.getRevocationDataService() instanceof PrefetchedRevocationData) {
+                config.setRevocationDataService(((PrefetchedRevocationData)config.getRevocationDataService()).delegate);
+            }
+            si.setOpcPackage(null);
+            signers.add(si);
+            throw new CompletionException(e);
+        }
+    }
+
+    private Pending postSign(Pending p) {
+        SignatureInfo si = p.signatureInfo;
+        SignatureConfig config = si.getSignatureConfig();
+        try {
+            si.postSign(p.signContext, p.signatureValue);
+            return p;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            if (p.revocationDataService != null) {
+                config.setRevocationDataService(p.revocationDataService);
+            }
+            si.setOpcPackage(null);
+            signers.add(si);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import de.kiwiwings.poi.dsig.DummyKeystore.KeyCertPair;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
+import org.apache.poi.poifs.crypt.dsig.SignatureInfo;
+import org.apache.poi.poifs.crypt.dsig.facets.KeyInfoSignatureFacet;
+import org.apache.poi.poifs.crypt.dsig.facets.Office2010SignatureFacet;
+
+/**
+ * Signs a batch of OOXML packages on a pool of worker threads.
+ *
+ * The {@link SignatureConfig} is not thread-safe (e.g. the TSP http client is stateful), therefore
+ * each worker asks the config supplier once for its own copy and keeps its own {@link SignatureInfo}
+ * and thereby its own {@link javax.xml.crypto.dsig.XMLSignatureFactory}.
+ * The number of queued packages is limited, so the producing thread is blocked when the workers
+ * can't keep up.
+ */
+public class BatchSigner implements Closeable {
+    public static class Result {
+        private final Path source;
+        private final Path target;
+        private final long durationNanos;
+        private final Exception error;
+
+        Result(Path source, Path target, long durationNanos, Exception error) {
+            this.source = source;
+            this.target = target;
+            this.durationNanos = durationNanos;
+            this.error = error;
+        }
+
+        public Path getSource() {
+            return source;
+        }
+
+        public Path getTarget() {
+            return target;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         * @return the failure cause or {@code null} if the package was signed
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    private final Supplier<SignatureConfig> configFactory;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Semaphore pending;
+    private final ThreadLocal<SignatureInfo> workerInfo;
+    private Supplier<SignatureInfo> signatureInfoFactory = SignatureInfo::new;
+
+    /**
+     * @param configFactory creates the signature config for a worker - called once per worker thread
+     * @param workers the number of worker threads
+     * @param maxPending the maximum number of queued and running packages
+     */
+    public BatchSigner(Supplier<SignatureConfig> configFactory, int workers, int maxPending) {
+        this(configFactory, workers, maxPending, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * @param configFactory creates the signature config for a worker - called once per worker thread
+     * @param workers the number of worker threads
+     * @param maxPending the maximum number of queued and running packages
+     * @param threadFactory the worker thread factory, e.g. a virtual thread factory on newer JDKs
+     */
+    public BatchSigner(Supplier<SignatureConfig> configFactory, int workers, int maxPending, ThreadFactory threadFactory) {
+        if (workers < 1 || maxPending < workers) {
+            throw new IllegalArgumentException("workers must be positive and maxPending must be at least workers");
+        }
+        this.configFactory = configFactory;
+        this.executor = Executors.newFixedThreadPool(workers, threadFactory);
+        this.maxPending = maxPending;
+        this.pending = new Semaphore(maxPending);
+        this.workerInfo = ThreadLocal.withInitial(this::newSignatureInfo);
+    }
+
+    /**
+     * @param signatureInfoFactory creates the SignatureInfo of a worker, e.g. {@link SigningInstrumentation#newSignatureInfo()}.
+     *  Needs to be set before the first package is signed
+     */
+    public void setSignatureInfoFactory(Supplier<SignatureInfo> signatureInfoFactory) {
+        this.signatureInfoFactory = signatureInfoFactory;
+    }
+
+    private SignatureInfo newSignatureInfo() {
+        SignatureInfo si = signatureInfoFactory.get();
+        si.setSignatureConfig(configFactory.get());
+        return si;
+    }
+
+    /**
+     * Signs all files of the source directory (non-recursive) and saves them with the same name
+     * in the target directory
+     *
+     * @param resultConsumer is called from the worker threads as soon as a package is finished
+     */
+    public void signDirectory(Path sourceDir, Path targetDir, Consumer<Result> resultConsumer)
+        throws IOException, InterruptedException {
+        Files.createDirectories(targetDir);
+        try (Stream<Path> files = Files.list(sourceDir)) {
+            sign(files.filter(Files::isRegularFile).iterator(), p -> targetDir.resolve(p.getFileName()), resultConsumer);
+        }
+    }
+
+    /**
+     * Signs the source packages and waits until all of them are processed.
+     * The sources are pulled lazily, i.e. the iterator is only advanced if a worker slot is free.
+     *
+     * @param sources the packages to be signed
+     * @param targetMapper maps a source path to its target path
+     * @param resultConsumer is called from the worker threads as soon as a package is finished
+     */
+    public void sign(Iterator<Path> sources, Function<Path,Path> targetMapper, Consumer<Result> resultConsumer)
+        throws InterruptedException {
+        while (sources.hasNext()) {
+            Path source = sources.next();
+            Path target = targetMapper.apply(source);
+            pending.acquire();
+            executor.execute(() -> {
+                try {
+                    resultConsumer.accept(signOne(source, target));
+                } finally {
+                    pending.release();
+                }
+            });
+        }
+        // wait for the tail of the batch
+        pending.acquire(maxPending);
+        pending.release(maxPending);
+    }
+
+    private Result signOne(Path source, Path target) {
+        long start = System.nanoTime();
+        SignatureInfo si = workerInfo.get();
+        try (InputStream is = Files.newInputStream(source);
+             OPCPackage pkg = OPCPackage.open(is)) {
+            si.setOpcPackage(pkg);
+            si.confirmSignature();
+            try (OutputStream os = Files.newOutputStream(target)) {
+                pkg.save(os);
+            }
+            return new Result(source, target, System.nanoTime() - start, null);
+        } catch (Exception e) {
+            return new Result(source, target, System.nanoTime() - start, e);
+        } finally {
+            si.setOpcPackage(null);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, GeneralSecurityException, InterruptedException {
+        if (args.length < 5) {
+            System.err.println("Usage: BatchSigner <keystore.pfx> <storePass> <keyPass> <sourceDir> <targetDir> [workers]");
+            return;
+        }
+
+        DummyKeystore dk = new DummyKeystore(new File(args[0]), args[1]);
+        KeyCertPair kcp = dk.getKeyPair(0, args[2]);
+        int workers = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+
+        Supplier<SignatureConfig> configFactory = () -> {
+            SignatureConfig signatureConfig = new SignatureConfig();
+            signatureConfig.setKey(kcp.getKey());
+            signatureConfig.setSigningCertificateChain(kcp.getX509Chain());
+            signatureConfig.setSignatureFacets(Arrays.asList(
+                new OOXML2SignatureFacet(),
+                new KeyInfoSignatureFacet(),
+                new XAdES2SignatureFacet(),
+                new Office2010SignatureFacet()
+            ));
+            return signatureConfig;
+        };
+
+        AtomicInteger failed = new AtomicInteger();
+        try (BatchSigner bs = new BatchSigner(configFactory, workers, workers * 4)) {
+            bs.signDirectory(Paths.get(args[3]), Paths.get(args[4]), r -> {
+                if (r.isSuccess()) {
+                    System.out.println(r.getSource() + " signed in " + TimeUnit.NANOSECONDS.toMillis(r.getDurationNanos()) + "ms");
+                } else {
+                    failed.incrementAndGet();
+                    System.err.println(r.getSource() + " failed: " + r.getError());
+                }
+            });
+        }
+        System.out.println(failed.get() == 0 ? "all packages signed" : failed.get() + " packages failed");
+        System.out.printf(Locale.ROOT, "algorithm cache hit rate: %.1f%%%n", SignatureAlgorithmCache.getHitRate() * 100);
+    }
+}
@@ -30,11 +30,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -47,18 +48,23 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
-import java.security.interfaces.RSAPublicKey;
-import java.security.spec.RSAKeyGenParameterSpec;
 import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -68,6 +74,8 @@ import javax.security.auth.x500.X500Principal;
 import org.apache.poi.poifs.crypt.CryptoFunctions;
 import org.apache.poi.util.LocaleUtil;
 import org.apache.poi.util.RandomSingleton;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Primitive;
 import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
 import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
@@ -75,8 +83,10 @@ import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
 import org.bouncycastle.asn1.x509.BasicConstraints;
 import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
 import org.bouncycastle.asn1.x509.Extension;
 import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
 import org.bouncycastle.asn1.x509.KeyUsage;
 import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
@@ -87,6 +97,7 @@ import org.bouncycastle.cert.X509v2CRLBuilder;
 import org.bouncycastle.cert.X509v3CertificateBuilder;
 import org.bouncycastle.cert.jcajce.JcaX509CRLConverter;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
 import org.bouncycastle.cert.ocsp.BasicOCSPResp;
 import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
 import org.bouncycastle.cert.ocsp.CertificateID;
@@ -97,8 +108,6 @@ import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
 import org.bouncycastle.cert.ocsp.OCSPResp;
 import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
 import org.bouncycastle.cert.ocsp.Req;
-import org.bouncycastle.crypto.params.RSAKeyParameters;
-import org.bouncycastle.crypto.util.SubjectPublicKeyInfoFactory;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 import org.bouncycastle.operator.ContentSigner;
@@ -130,10 +139,92 @@ public class DummyKeystore {
         }
     }
 
+    /**
+     * Index of the certificates of the keystore by subject DN and subject key identifier, which is used to
+     * complete the chains of imported keys
+     */
+    private static final class CertificateIndex {
+        private final Set<X509Certificate> certs = new HashSet<>();
+        private final Map<X500Principal,List<X509Certificate>> bySubject = new HashMap<>();
+        private final Map<ByteBuffer,List<X509Certificate>> bySubjectKeyId = new HashMap<>();
+
+        void add(Certificate[] chain) {
+            if (chain == null) {
+                return;
+            }
+            for (Certificate c : chain) {
+                X509Certificate x509 = (X509Certificate)c;
+                if (x509 == null || !certs.add(x509)) {
+                    continue;
+                }
+                bySubject.computeIfAbsent(x509.getSubjectX500Principal(), k -> new ArrayList<>(1)).add(x509);
+                byte[] ski = getKeyIdentifier(x509, Extension.subjectKeyIdentifier);
+                if (ski != null) {
+                    bySubjectKeyId.computeIfAbsent(ByteBuffer.wrap(ski), k -> new ArrayList<>(1)).add(x509);
+                }
+            }
+        }
+
+        /**
+         * @return the issuer or {@code null} if the certificate is self-issued or the issuer is unknown
+         */
+        X509Certificate findIssuer(X509Certificate cert) {
+            X500Principal issuerName = cert.getIssuerX500Principal();
+            byte[] aki = getKeyIdentifier(cert, Extension.authorityKeyIdentifier);
+            List<X509Certificate> candidates = (aki != null) ? bySubjectKeyId.get(ByteBuffer.wrap(aki)) : null;
+            if (candidates == null) {
+                // the issuer might not have a subject key identifier or uses a different key id method
+                candidates = bySubject.get(issuerName);
+            }
+            if (candidates == null) {
+                return null;
+            }
+            X509Certificate issuer = null;
+            for (X509Certificate c : candidates) {
+                if (!c.getSubjectX500Principal().equals(issuerName)) {
+                    continue;
+                }
+                if (candidates.size() == 1 || verifies(cert, c)) {
+                    issuer = c;
+                    break;
+                }
+            }
+            return (issuer == null || issuer.equals(cert)) ? null : issuer;
+        }
+
+        private static boolean verifies(X509Certificate cert, X509Certificate issuer) {
+            try {
+                cert.verify(issuer.getPublicKey());
+                return true;
+            } catch (GeneralSecurityException e) {
+                return false;
+            }
+        }
+
+        private static byte[] getKeyIdentifier(X509Certificate cert, ASN1ObjectIdentifier extension) {
+            byte[] ext = cert.getExtensionValue(extension.getId());
+            if (ext == null) {
+                return null;
+            }
+            try {
+                ASN1Primitive value = JcaX509ExtensionUtils.parseExtensionValue(ext);
+                return Extension.subjectKeyIdentifier.equals(extension)
+                    ? SubjectKeyIdentifier.getInstance(value).getKeyIdentifier()
+                    : AuthorityKeyIdentifier.getInstance(value).getKeyIdentifier();
+            } catch (IOException | IllegalArgumentException e) {
+                // an invalid extension is handled like a missing one, i.e. the DN is used
+                return null;
+            }
+        }
+    }
+
     private static final String DUMMY_ALIAS = "Test";
     private static final String DUMMY_PASS = "test";
 
     private final KeyStore keystore;
+    private KeyPairPool keyPairPool;
+    // built on the first import and then maintained with each new entry
+    private CertificateIndex certIndex;
 
     public DummyKeystore(String storePass) throws GeneralSecurityException, IOException {
         this((File)null, storePass);
@@ -190,21 +281,38 @@ public class DummyKeystore {
         }
 
         String alias = x509.getSubjectX500Principal().getName();
-        keystore.setKeyEntry(alias, key, keyPass.toCharArray(), new Certificate[]{x509});
+        setKeyEntry(alias, key, keyPass, new Certificate[]{x509});
 
         return new KeyCertPair(key, new Certificate[]{x509});
     }
 
 
+    /**
+     * Set a key pair pool, which is used instead of generating the key pairs inline
+     * @param keyPairPool the pool or {@code null} to generate the key pairs on demand
+     */
+    public void setKeyPairPool(KeyPairPool keyPairPool) {
+        this.keyPairPool = keyPairPool;
+    }
+
     /**
      * Add an entry with password, keySize and expiry values. Ignore if alias is already in keystore
      * @param keySize multiple of 1024, e.g. 1024, 2048
      */
     public KeyCertPair addEntry(String keyAlias, String keyPass, int keySize, int expiryInMonths) throws GeneralSecurityException, IOException, OperatorCreationException {
+        return addEntry(keyAlias, keyPass, "RSA", keySize, expiryInMonths);
+    }
+
+    /**
+     * Add an entry with password, key algorithm, keySize and expiry values. Ignore if alias is already in keystore
+     * @param keyAlgorithm "RSA" or "EC"
+     * @param keySize for RSA a multiple of 1024, e.g. 1024, 2048 - for EC the field size, e.g. 256, 384
+     */
+    public KeyCertPair addEntry(String keyAlias, String keyPass, String keyAlgorithm, int keySize, int expiryInMonths) throws GeneralSecurityException, IOException, OperatorCreationException {
         if (!keystore.isKeyEntry(keyAlias)) {
-            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
-            keyPairGenerator.initialize(new RSAKeyGenParameterSpec(keySize, RSAKeyGenParameterSpec.F4), RandomSingleton.getInstance());
-            KeyPair pair = keyPairGenerator.generateKeyPair();
+            KeyPair pair = (keyPairPool != null)
+                ? keyPairPool.take(keyAlgorithm, keySize)
+                : KeyPairPool.generateKeyPair(keyAlgorithm, keySize);
 
             Date notBefore = new Date();
             Calendar cal = LocaleUtil.getLocaleCalendar(LocaleUtil.TIMEZONE_UTC);
@@ -213,13 +321,38 @@ public class DummyKeystore {
             KeyUsage keyUsage = new KeyUsage(KeyUsage.digitalSignature);
 
             X509Certificate x509 = generateCertificate(pair.getPublic(), notBefore, notAfter, pair.getPrivate(), keyUsage);
-            keystore.setKeyEntry(keyAlias, pair.getPrivate(), keyPass.toCharArray(), new Certificate[]{x509});
+            setKeyEntry(keyAlias, pair.getPrivate(), keyPass, new Certificate[]{x509});
             return new KeyCertPair(pair.getPrivate(), new X509Certificate[]{x509});
         } else {
             return new KeyCertPair(getKey(keyAlias, keyPass), keystore.getCertificateChain(keyAlias));
         }
     }
 
+    /**
+     * Add an RSA entry for a time-stamp authority, i.e. the certificate has the critical extended key usage
+     * timeStamping. Ignore if alias is already in keystore
+     * @param keySize multiple of 1024, e.g. 1024, 2048
+     */
+    public KeyCertPair addTsaEntry(String keyAlias, String keyPass, int keySize, int expiryInMonths) throws GeneralSecurityException, IOException, OperatorCreationException {
+        if (keystore.isKeyEntry(keyAlias)) {
+            return getKeyPair(keyAlias, keyPass);
+        }
+        KeyPair pair = (keyPairPool != null)
+            ? keyPairPool.take("RSA", keySize)
+            : KeyPairPool.generateKeyPair("RSA", keySize);
+
+        Date notBefore = new Date();
+        Calendar cal = LocaleUtil.getLocaleCalendar(LocaleUtil.TIMEZONE_UTC);
+        cal.add(Calendar.MONTH, expiryInMonths);
+        Date notAfter = cal.getTime();
+        KeyUsage keyUsage = new KeyUsage(KeyUsage.digitalSignature);
+        ExtendedKeyUsage extKeyUsage = new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping);
+
+        X509Certificate x509 = generateCertificate(pair.getPublic(), notBefore, notAfter, pair.getPrivate(), keyUsage, extKeyUsage);
+        setKeyEntry(keyAlias, pair.getPrivate(), keyPass, new Certificate[]{x509});
+        return new KeyCertPair(pair.getPrivate(), new X509Certificate[]{x509});
+    }
+
     public KeyCertPair getKeyPair(String keyAlias, String keyPass) throws GeneralSecurityException {
         return new KeyCertPair(getKey(keyAlias, keyPass), keystore.getCertificateChain(keyAlias));
     }
@@ -242,6 +375,24 @@ public class DummyKeystore {
         return (X509Certificate)keystore.getCertificate(alias);
     }
 
+    /**
+     * @return the distinct certificates of all key and certificate entries, including the certificate chains
+     */
+    public List<X509Certificate> getX509Certificates() throws KeyStoreException {
+        Set<X509Certificate> certs = new LinkedHashSet<>();
+        for (String a : Collections.list(keystore.aliases())) {
+            Certificate[] chain = keystore.getCertificateChain(a);
+            if (chain == null) {
+                Certificate cert = keystore.getCertificate(a);
+                chain = (cert == null) ? new Certificate[0] : new Certificate[]{cert};
+            }
+            for (Certificate c : chain) {
+                certs.add((X509Certificate)c);
+            }
+        }
+        return new ArrayList<>(certs);
+    }
+
     private Map.Entry<String,PrivateKey> getKeyByIndex(int index, String keyPass) throws GeneralSecurityException {
         for (String a : Collections.list(keystore.aliases())) {
             try {
@@ -282,20 +433,25 @@ public class DummyKeystore {
 
 
 
-    private static X509Certificate generateCertificate(PublicKey subjectPublicKey,
+    static X509Certificate generateCertificate(PublicKey subjectPublicKey,
         Date notBefore, Date notAfter,
         PrivateKey issuerPrivateKey,
         KeyUsage keyUsage)
         throws IOException, OperatorCreationException, CertificateException {
-        final String signatureAlgorithm = "SHA1withRSA";
+        return generateCertificate(subjectPublicKey, notBefore, notAfter, issuerPrivateKey, keyUsage, null);
+    }
+
+    static X509Certificate generateCertificate(PublicKey subjectPublicKey,
+        Date notBefore, Date notAfter,
+        PrivateKey issuerPrivateKey,
+        KeyUsage keyUsage,
+        ExtendedKeyUsage extKeyUsage)
+        throws IOException, OperatorCreationException, CertificateException {
+        final String signatureAlgorithm = "EC".equals(issuerPrivateKey.getAlgorithm()) ? "SHA256withECDSA" : "SHA1withRSA";
         final String subjectDn = "CN=Test";
         X500Name issuerName = new X500Name(subjectDn);
 
-        RSAPublicKey rsaPubKey = (RSAPublicKey)subjectPublicKey;
-        RSAKeyParameters rsaSpec = new RSAKeyParameters(false, rsaPubKey.getModulus(), rsaPubKey.getPublicExponent());
-
-        SubjectPublicKeyInfo subjectPublicKeyInfo =
-            SubjectPublicKeyInfoFactory.createSubjectPublicKeyInfo(rsaSpec);
+        SubjectPublicKeyInfo subjectPublicKeyInfo = SubjectPublicKeyInfo.getInstance(subjectPublicKey.getEncoded());
 
         DigestCalculator digestCalc = new JcaDigestCalculatorProviderBuilder()
             .setProvider("BC").build().get(CertificateID.HASH_SHA1);
@@ -323,6 +479,11 @@ public class DummyKeystore {
             certificateGenerator.addExtension(Extension.keyUsage, true, keyUsage);
         }
 
+        if (null != extKeyUsage) {
+            // RFC 3161 requires the extended key usage to be critical
+            certificateGenerator.addExtension(Extension.extendedKeyUsage, true, extKeyUsage);
+        }
+
         JcaContentSignerBuilder signerBuilder = new JcaContentSignerBuilder(signatureAlgorithm);
         signerBuilder.setProvider("BC");
 
@@ -399,8 +560,14 @@ public class DummyKeystore {
     }
 
     public void importX509(InputStream is) throws CertificateException, KeyStoreException, IOException {
-        X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(is);
+        importX509((X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(is));
+    }
+
+    public void importX509(X509Certificate cert) throws KeyStoreException {
         keystore.setCertificateEntry(cert.getSubjectX500Principal().getName(), cert);
+        if (certIndex != null) {
+            certIndex.add(new Certificate[]{cert});
+        }
     }
 
 
@@ -414,41 +581,96 @@ public class DummyKeystore {
         importKeystoreInner(dk, keyPass, otherKeyPass);
     }
 
+    /**
+     * Imports the keys of many keystores. The keystores are parsed and the keys are decrypted in parallel,
+     * the entries are added in the order of the files. The chains are completed with the certificates of
+     * this keystore and all of the imported keystores.
+     *
+     * @param threads the number of threads, which parse the keystores
+     */
+    public void importKeystores(List<File> files, String storePass, String keyPass, Function<String,String> otherKeyPass, int threads)
+        throws GeneralSecurityException, IOException {
+        AtomicInteger threadIdx = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "DummyKeystore-import-" + threadIdx.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<Map<String,KeyCertPair>>> parsed = new ArrayList<>(files.size());
+            for (File file : files) {
+                parsed.add(executor.submit(() -> new DummyKeystore(file, storePass).getKeyPairs(otherKeyPass)));
+            }
+            List<Map<String,KeyCertPair>> keyPairs = new ArrayList<>(files.size());
+            for (Future<Map<String,KeyCertPair>> f : parsed) {
+                keyPairs.add(f.get());
+            }
+            importKeyPairs(keyPairs, keyPass);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("keystore import was interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException)cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else {
+                throw new IOException(cause);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     private void importKeystoreInner(DummyKeystore dk, String keyPass, Function<String,String> otherKeyPass) throws GeneralSecurityException {
-        Map<String,X509Certificate> myCerts = new HashMap<>();
+        importKeyPairs(Collections.singletonList(dk.getKeyPairs(otherKeyPass)), keyPass);
+    }
+
+    Map<String,KeyCertPair> getKeyPairs(Function<String,String> keyPass) throws GeneralSecurityException {
+        Map<String,KeyCertPair> keyPairs = new LinkedHashMap<>();
         for (String a : Collections.list(keystore.aliases())) {
-            Certificate[] chain = keystore.getCertificateChain(a);
-            if (chain == null) {
-                Certificate cert = keystore.getCertificate(a);
-                if (cert == null) {
-                    continue;
-                }
-                chain = new Certificate[]{cert};
-            }
-            Arrays.stream(chain)
-                .map(X509Certificate.class::cast)
-                .filter(c -> !myCerts.containsKey(c.getSubjectX500Principal().getName()))
-                .forEach(c -> myCerts.put(c.getSubjectX500Principal().getName(), c));
+            keyPairs.put(a, getKeyPair(a, keyPass.apply(a)));
         }
+        return keyPairs;
+    }
 
-        for (String a : Collections.list(dk.keystore.aliases())) {
-            KeyCertPair keyPair = dk.getKeyPair(a, otherKeyPass.apply(a));
-            ArrayList<X509Certificate> chain = new ArrayList<>(keyPair.getX509Chain());
-            Set<String> names = chain.stream().map(X509Certificate::getSubjectX500Principal).map(X500Principal::getName).collect(Collectors.toSet());
-            X509Certificate last = chain.get(chain.size() - 1);
-            do {
-                String issuer = last.getIssuerX500Principal().getName();
-                X509Certificate parent = myCerts.get(issuer);
-                if (names.contains(issuer) || parent == null) {
-                    break;
-                } else {
+    void importKeyPairs(List<Map<String,KeyCertPair>> keyPairs, String keyPass) throws KeyStoreException {
+        CertificateIndex index = getCertificateIndex();
+        // index first, so the chains can refer to the certificates of each imported keystore
+        keyPairs.forEach(m -> m.values().forEach(kcp -> index.add(kcp.getX509Chain().toArray(new Certificate[0]))));
+
+        for (Map<String,KeyCertPair> m : keyPairs) {
+            for (Map.Entry<String,KeyCertPair> me : m.entrySet()) {
+                KeyCertPair keyPair = me.getValue();
+                List<X509Certificate> chain = new ArrayList<>(keyPair.getX509Chain());
+                Set<X509Certificate> contained = new HashSet<>(chain);
+                for (X509Certificate parent = index.findIssuer(chain.get(chain.size()-1));
+                     parent != null && contained.add(parent);
+                     parent = index.findIssuer(parent)) {
                     chain.add(parent);
-                    names.add(issuer);
                 }
-                last = parent;
-            } while (true);
+                keystore.setKeyEntry(me.getKey(), keyPair.getKey(), keyPass.toCharArray(), chain.toArray(new X509Certificate[0]));
+            }
+        }
+    }
 
-            keystore.setKeyEntry(a, keyPair.getKey(), keyPass.toCharArray(), chain.toArray(new X509Certificate[0]));
+    private void setKeyEntry(String alias, PrivateKey key, String keyPass, Certificate[] chain) throws KeyStoreException {
+        keystore.setKeyEntry(alias, key, keyPass.toCharArray(), chain);
+        if (certIndex != null) {
+            certIndex.add(chain);
+        }
+    }
+
+    private CertificateIndex getCertificateIndex() throws KeyStoreException {
+        if (certIndex == null) {
+            CertificateIndex index = new CertificateIndex();
+            for (String a : Collections.list(keystore.aliases())) {
+                Certificate[] chain = keystore.getCertificateChain(a);
+                index.add(chain != null ? chain : new Certificate[]{keystore.getCertificate(a)});
+            }
+            certIndex = index;
         }
+        return certIndex;
     }
 }
@@ -0,0 +1,71 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.poi.util.IOUtils;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+/**
+ * OCSP source for the {@link RevocationCache}, which posts a request without nonce to a fixed responder url,
+ * e.g. of a {@link LocalOcspResponder}.
+ */
+public class HttpOcspSource implements RevocationCache.Source {
+    private final URL responderUrl;
+    private int timeoutMillis = 10_000;
+
+    public HttpOcspSource(URL responderUrl) {
+        this.responderUrl = responderUrl;
+    }
+
+    public void setTimeoutMillis(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public List<byte[]> fetch(X509Certificate certificate, X509Certificate issuer) throws IOException, GeneralSecurityException {
+        byte[] reqBytes;
+        try {
+            CertificateID certId = new CertificateID(
+                new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1),
+                new X509CertificateHolder(issuer.getEncoded()), certificate.getSerialNumber());
+            reqBytes = new OCSPReqBuilder().addRequest(certId).build().getEncoded();
+        } catch (OperatorCreationException | OCSPException e) {
+            throw new GeneralSecurityException("can't create OCSP request", e);
+        }
+
+        // the connection isn't disconnected, so the keep-alive connection can be reused
+        HttpURLConnection con = (HttpURLConnection)responderUrl.openConnection();
+        con.setConnectTimeout(timeoutMillis);
+        con.setReadTimeout(timeoutMillis);
+        con.setDoOutput(true);
+        con.setRequestMethod("POST");
+        con.setRequestProperty("Content-Type", "application/ocsp-request");
+        con.setFixedLengthStreamingMode(reqBytes.length);
+        try (OutputStream os = con.getOutputStream()) {
+            os.write(reqBytes);
+        }
+        if (con.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("OCSP responder " + responderUrl + " returned http status " + con.getResponseCode());
+        }
+        byte[] respBytes;
+        try (InputStream is = con.getInputStream()) {
+            respBytes = IOUtils.toByteArray(is);
+        }
+        int status = new OCSPResp(respBytes).getStatus();
+        return (status == OCSPResp.SUCCESSFUL) ? Collections.singletonList(respBytes) : Collections.emptyList();
+    }
+}
@@ -0,0 +1,200 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
+import org.apache.poi.poifs.crypt.dsig.services.RevocationData;
+import org.apache.poi.poifs.crypt.dsig.services.RevocationDataService;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.SingleResp;
+
+/**
+ * RevocationDataService, which looks up the CRLs and OCSP responses of a certificate chain in an index
+ * instead of scanning all of them.
+ *
+ * The CRLs are indexed by their authority key identifier and by their issuer DN. A certificate is matched
+ * by its authority key identifier, and only if it has none or no CRL with that key id is known, by its
+ * issuer DN. The OCSP responses are indexed by the issuer name hash and serial number of their CertIDs.
+ * So a lookup costs a few hash lookups per chain element, independent of the number of registered CRLs.
+ *
+ * The index can be shared between concurrent signers and can be extended while it's used.
+ */
+public class IndexedRevocationDataService implements RevocationDataService {
+    private static final String SHA1_OID = CertificateID.HASH_SHA1.getAlgorithm().getId();
+
+    private final Map<ByteBuffer,List<byte[]>> crlsByAuthorityKeyId = new ConcurrentHashMap<>();
+    private final Map<X500Principal,List<byte[]>> crlsByIssuer = new ConcurrentHashMap<>();
+    // key: hash algorithm oid, issuer name hash, serial number
+    private final Map<List<Object>,List<byte[]>> ocspsByCertId = new ConcurrentHashMap<>();
+    private final Set<String> ocspHashAlgorithms = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Adds a CRL to the index
+     *
+     * @param encodedCrl the DER encoded CRL
+     */
+    public void addCRL(byte[] encodedCrl) throws CRLException {
+        X509CRL crl;
+        try {
+            crl = (X509CRL)CertificateFactory.getInstance("X.509").generateCRL(new ByteArrayInputStream(encodedCrl));
+        } catch (CertificateException e) {
+            throw new CRLException(e);
+        }
+        addCRL(crl, encodedCrl);
+    }
+
+    /**
+     * Adds a parsed CRL to the index
+     *
+     * @param crl the CRL
+     * @param encodedCrl the DER encoded CRL, which will be added to the revocation data
+     */
+    public void addCRL(X509CRL crl, byte[] encodedCrl) {
+        byte[] keyId = getKeyIdentifier(crl.getExtensionValue(Extension.authorityKeyIdentifier.getId()));
+        if (keyId != null) {
+            crlsByAuthorityKeyId.computeIfAbsent(ByteBuffer.wrap(keyId), k -> new CopyOnWriteArrayList<>()).add(encodedCrl);
+        }
+        crlsByIssuer.computeIfAbsent(crl.getIssuerX500Principal(), k -> new CopyOnWriteArrayList<>()).add(encodedCrl);
+    }
+
+    /**
+     * Adds the CRLs of the signature config, which were added via {@link SignatureConfig#addCRL(String, String, byte[])}
+     */
+    public void addCRLs(SignatureConfig signatureConfig) throws CRLException {
+        for (SignatureConfig.CRLEntry ce : signatureConfig.getCrlEntries()) {
+            addCRL(ce.getCrlBytes());
+        }
+    }
+
+    /**
+     * Adds an OCSP response to the index - the response is returned for each certificate of its single responses
+     *
+     * @param encodedOcsp the DER encoded OCSPResponse
+     */
+    public void addOCSP(byte[] encodedOcsp) throws IOException, OCSPException {
+        Object respObj = new OCSPResp(encodedOcsp).getResponseObject();
+        if (!(respObj instanceof BasicOCSPResp)) {
+            throw new OCSPException("unsupported OCSP response");
+        }
+        for (SingleResp sr : ((BasicOCSPResp)respObj).getResponses()) {
+            CertificateID certId = sr.getCertID();
+            String hashOid = certId.getHashAlgOID().getId();
+            ocspHashAlgorithms.add(hashOid);
+            ocspsByCertId.computeIfAbsent(ocspKey(hashOid, certId.getIssuerNameHash(), certId.getSerialNumber()),
+                k -> new CopyOnWriteArrayList<>()).add(encodedOcsp);
+        }
+    }
+
+    /**
+     * Adds an OCSP response for the given certificate - the response isn't checked against the certificate.
+     *
+     * @param certificate the certificate, whose chain lookups will return the response
+     * @param encodedOcsp the DER encoded OCSPResponse
+     */
+    public void addOCSP(X509Certificate certificate, byte[] encodedOcsp) {
+        ocspHashAlgorithms.add(SHA1_OID);
+        ocspsByCertId.computeIfAbsent(ocspKey(SHA1_OID, issuerNameHash(SHA1_OID, certificate), certificate.getSerialNumber()),
+            k -> new CopyOnWriteArrayList<>()).add(encodedOcsp);
+    }
+
+    @Override
+    public RevocationData getRevocationData(List<X509Certificate> certificateChain) {
+        RevocationData rd = new RevocationData();
+        // RevocationData compares the CRLs by content, so the identical entries of the index are skipped beforehand
+        Set<byte[]> added = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (X509Certificate cert : certificateChain) {
+            for (byte[] crl : getCRLs(cert)) {
+                if (added.add(crl)) {
+                    rd.addCRL(crl);
+                }
+            }
+            for (byte[] ocsp : getOCSPs(cert)) {
+                if (added.add(ocsp)) {
+                    rd.addOCSP(ocsp);
+                }
+            }
+        }
+        return rd;
+    }
+
+    /**
+     * @return the encoded CRLs of the issuer of the given certificate
+     */
+    public List<byte[]> getCRLs(X509Certificate cert) {
+        byte[] keyId = getKeyIdentifier(cert.getExtensionValue(Extension.authorityKeyIdentifier.getId()));
+        List<byte[]> crls = (keyId == null) ? null : crlsByAuthorityKeyId.get(ByteBuffer.wrap(keyId));
+        if (crls == null) {
+            crls = crlsByIssuer.get(cert.getIssuerX500Principal());
+        }
+        return crls == null ? Collections.emptyList() : crls;
+    }
+
+    /**
+     * @return the encoded OCSP responses of the given certificate
+     */
+    public List<byte[]> getOCSPs(X509Certificate cert) {
+        List<byte[]> result = Collections.emptyList();
+        for (String hashOid : ocspHashAlgorithms) {
+            List<byte[]> ocsps = ocspsByCertId.get(ocspKey(hashOid, issuerNameHash(hashOid, cert), cert.getSerialNumber()));
+            if (ocsps != null) {
+                if (result.isEmpty()) {
+                    result = ocsps;
+                } else {
+                    result = new ArrayList<>(result);
+                    result.addAll(ocsps);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static byte[] getKeyIdentifier(byte[] akiExtension) {
+        if (akiExtension == null) {
+            return null;
+        }
+        try {
+            return AuthorityKeyIdentifier.getInstance(JcaX509ExtensionUtils.parseExtensionValue(akiExtension)).getKeyIdentifier();
+        } catch (IOException | IllegalArgumentException e) {
+            // an invalid extension is handled like a missing one, i.e. the issuer DN is used
+            return null;
+        }
+    }
+
+    private static byte[] issuerNameHash(String hashOid, X509Certificate cert) {
+        try {
+            return MessageDigest.getInstance(hashOid).digest(cert.getIssuerX500Principal().getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("hash algorithm of OCSP response isn't available: " + hashOid, e);
+        }
+    }
+
+    private static List<Object> ocspKey(String hashOid, byte[] issuerNameHash, Object serialNumber) {
+        return Arrays.asList(hashOid, ByteBuffer.wrap(issuerNameHash), serialNumber);
+    }
+}
@@ -0,0 +1,258 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.poifs.crypt.CryptoFunctions;
+import org.apache.poi.util.LocaleUtil;
+import org.apache.poi.util.RandomSingleton;
+
+/**
+ * Pool of pre-generated key pairs, e.g. for test fixtures or load tests.
+ *
+ * Key pairs are generated in the background on the spare cores and handed out without waiting
+ * for the generator. If the pool of the requested type is exhausted, the key pair is generated
+ * inline as a fallback.
+ *
+ * Unused key pairs can be saved to a PKCS12 cache file, so they can be reused after a restart.
+ * As PKCS12 doesn't allow key entries without certificates, each key is stored with a dummy
+ * self-signed certificate.
+ */
+public class KeyPairPool implements Closeable {
+    private static final Logger LOG = LogManager.getLogger(KeyPairPool.class);
+
+    private static class Slot {
+        private final String algorithm;
+        private final int keySize;
+        private final BlockingQueue<KeyPair> keys = new LinkedBlockingQueue<>();
+        // number of key pairs which are available or scheduled for generation
+        private final AtomicInteger planned = new AtomicInteger();
+
+        Slot(String algorithm, int keySize) {
+            this.algorithm = algorithm;
+            this.keySize = keySize;
+        }
+    }
+
+    private final int poolSize;
+    private final ExecutorService generators;
+    private final Map<String,Slot> slots = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a pool which uses all but one core for the key generation
+     *
+     * @param poolSize the number of key pairs kept ready per algorithm and key size
+     */
+    public KeyPairPool(int poolSize) {
+        this(poolSize, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * @param poolSize the number of key pairs kept ready per algorithm and key size
+     * @param threads the number of background generator threads
+     */
+    public KeyPairPool(int poolSize, int threads) {
+        CryptoFunctions.registerBouncyCastle();
+        this.poolSize = poolSize;
+        AtomicInteger threadIdx = new AtomicInteger();
+        generators = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "KeyPairPool-" + threadIdx.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Starts filling the pool for the given key type in the background
+     *
+     * @param algorithm "RSA" or "EC"
+     * @param keySize the RSA modulus size or the EC field size (256, 384, 521)
+     */
+    public void prefill(String algorithm, int keySize) {
+        refill(getSlot(algorithm, keySize));
+    }
+
+    /**
+     * Takes a key pair from the pool - if none is ready, it will be generated on the calling thread.
+     * The pool is refilled in the background.
+     *
+     * @param algorithm "RSA" or "EC"
+     * @param keySize the RSA modulus size or the EC field size (256, 384, 521)
+     */
+    public KeyPair take(String algorithm, int keySize) throws GeneralSecurityException {
+        Slot slot = getSlot(algorithm, keySize);
+        KeyPair pair = slot.keys.poll();
+        if (pair != null) {
+            slot.planned.decrementAndGet();
+        } else {
+            LOG.atDebug().log("key pool for {}-{} is exhausted", algorithm, keySize);
+            pair = generateKeyPair(algorithm, keySize);
+        }
+        refill(slot);
+        return pair;
+    }
+
+    /**
+     * @return the number of key pairs which are ready for the given key type
+     */
+    public int available(String algorithm, int keySize) {
+        Slot slot = slots.get(slotKey(algorithm, keySize));
+        return slot == null ? 0 : slot.keys.size();
+    }
+
+    /**
+     * Adds the key pairs of a cache file, which was created via {@link #save(File, String)}, to the pool.
+     * A missing cache file is ignored.
+     */
+    public void load(File cacheFile, String storePass) throws GeneralSecurityException, IOException {
+        if (!cacheFile.exists()) {
+            return;
+        }
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream is = new FileInputStream(cacheFile)) {
+            ks.load(is, storePass.toCharArray());
+        }
+        for (String alias : Collections.list(ks.aliases())) {
+            // alias format: <algorithm>-<keySize>-<index>
+            String[] parts = alias.split("-");
+            if (parts.length != 3 || !ks.isKeyEntry(alias)) {
+                continue;
+            }
+            PrivateKey key = (PrivateKey)ks.getKey(alias, storePass.toCharArray());
+            KeyPair pair = new KeyPair(ks.getCertificate(alias).getPublicKey(), key);
+            Slot slot = getSlot(parts[0].toUpperCase(), Integer.parseInt(parts[1]));
+            slot.planned.incrementAndGet();
+            slot.keys.add(pair);
+        }
+    }
+
+    /**
+     * Saves the currently available key pairs to a PKCS12 cache file.
+     * The key pairs stay in the pool.
+     */
+    public void save(File cacheFile, String storePass) throws GeneralSecurityException, IOException {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        ks.load(null, storePass.toCharArray());
+
+        Date notBefore = new Date();
+        Calendar cal = LocaleUtil.getLocaleCalendar(LocaleUtil.TIMEZONE_UTC);
+        cal.add(Calendar.YEAR, 10);
+        Date notAfter = cal.getTime();
+
+        for (Slot slot : slots.values()) {
+            List<KeyPair> pairs = new ArrayList<>(slot.keys);
+            for (int i=0; i<pairs.size(); i++) {
+                KeyPair pair = pairs.get(i);
+                Certificate x509;
+                try {
+                    x509 = DummyKeystore.generateCertificate(pair.getPublic(), notBefore, notAfter, pair.getPrivate(), null);
+                } catch (Exception e) {
+                    throw new GeneralSecurityException("can't create dummy certificate for the key cache", e);
+                }
+                String alias = slotKey(slot.algorithm, slot.keySize) + "-" + i;
+                ks.setKeyEntry(alias, pair.getPrivate(), storePass.toCharArray(), new Certificate[]{x509});
+            }
+        }
+
+        try (OutputStream os = new FileOutputStream(cacheFile)) {
+            ks.store(os, storePass.toCharArray());
+        }
+    }
+
+    @Override
+    public void close() {
+        generators.shutdownNow();
+        try {
+            generators.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Generates a new key pair on the calling thread
+     *
+     * @param algorithm "RSA" or "EC"
+     * @param keySize the RSA modulus size or the EC field size (256, 384, 521)
+     */
+    public static KeyPair generateKeyPair(String algorithm, int keySize) throws GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(algorithm);
+        switch (algorithm) {
+            case "RSA":
+                keyPairGenerator.initialize(new RSAKeyGenParameterSpec(keySize, RSAKeyGenParameterSpec.F4), RandomSingleton.getInstance());
+                break;
+            case "EC":
+                keyPairGenerator.initialize(new ECGenParameterSpec("secp" + keySize + "r1"), RandomSingleton.getInstance());
+                break;
+            default:
+                keyPairGenerator.initialize(keySize, RandomSingleton.getInstance());
+                break;
+        }
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    private Slot getSlot(String algorithm, int keySize) {
+        return slots.computeIfAbsent(slotKey(algorithm, keySize), k -> new Slot(algorithm, keySize));
+    }
+
+    private static String slotKey(String algorithm, int keySize) {
+        return algorithm + "-" + keySize;
+    }
+
+    private void refill(Slot slot) {
+        while (!generators.isShutdown()) {
+            int planned = slot.planned.get();
+            if (planned >= poolSize) {
+                return;
+            }
+            if (slot.planned.compareAndSet(planned, planned + 1)) {
+                try {
+                    generators.execute(() -> generate(slot));
+                } catch (RejectedExecutionException e) {
+                    // closed in the meantime
+                    slot.planned.decrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void generate(Slot slot) {
+        try {
+            slot.keys.add(generateKeyPair(slot.algorithm, slot.keySize));
+        } catch (GeneralSecurityException e) {
+            slot.planned.decrementAndGet();
+            LOG.atWarn().withThrowable(e).log("can't generate {}-{} key pair", slot.algorithm, slot.keySize);
+        }
+    }
+}
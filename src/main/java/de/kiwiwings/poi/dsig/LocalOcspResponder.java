@@ -0,0 +1,366 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.security.auth.x500.X500Principal;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.kiwiwings.poi.dsig.DummyKeystore.KeyCertPair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.util.IOUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.UnknownStatus;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+/**
+ * Embedded HTTP OCSP responder for the certificates of a {@link DummyKeystore}, e.g. to load test
+ * the XAdES-X-L signing without network access.
+ *
+ * Like the lightweight profile of RFC 5019, the responses of the known certificates are signed in advance
+ * without nonce and are re-signed on a schedule before their nextUpdate. So a request is usually answered
+ * without a signing operation. Only requests for unknown certificates, other hash algorithms than SHA-1 or
+ * multiple certificates are signed on demand. The content signer is created once and reused.
+ *
+ * The status of each certificate and the latency of the responses can be configured, to simulate
+ * revoked certificates and remote responders.
+ */
+public class LocalOcspResponder implements Closeable {
+    private static final Logger LOG = LogManager.getLogger(LocalOcspResponder.class);
+    private static final String OCSP_RESPONSE_TYPE = "application/ocsp-response";
+
+    // all known certificates and their issuer
+    private final Map<X509Certificate,X509Certificate> issuers = new HashMap<>();
+    private final Map<CertificateID,byte[]> responses = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final DigestCalculatorProvider digestProvider;
+    private final DigestCalculator sha1Calc;
+    private final ContentSigner contentSigner;
+    private final RespID respID;
+    private final X509CertificateHolder[] responderChain;
+
+    private Function<X509Certificate,CertificateStatus> statusFunction = c -> CertificateStatus.GOOD;
+    private final SimulatedLatency latency = new SimulatedLatency();
+    private long validityMillis = TimeUnit.MINUTES.toMillis(10);
+
+    private HttpServer server;
+    private ExecutorService httpExecutor;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param keystore the keystore, whose certificates are served - certificates added later are signed on demand
+     * @param responder the key and certificate chain, which signs the responses
+     */
+    public LocalOcspResponder(DummyKeystore keystore, KeyCertPair responder)
+        throws KeyStoreException, OperatorCreationException, CertificateEncodingException, IOException {
+        List<X509Certificate> certs = keystore.getX509Certificates();
+        Map<X500Principal,List<X509Certificate>> subjects = new HashMap<>();
+        certs.forEach(c -> subjects.computeIfAbsent(c.getSubjectX500Principal(), k -> new ArrayList<>()).add(c));
+        for (X509Certificate c : certs) {
+            issuers.put(c, findIssuer(c, subjects.getOrDefault(c.getIssuerX500Principal(), Collections.emptyList())));
+        }
+
+        digestProvider = new JcaDigestCalculatorProviderBuilder().setProvider("BC").build();
+        sha1Calc = digestProvider.get(CertificateID.HASH_SHA1);
+        String sigAlgo = "EC".equals(responder.getKey().getAlgorithm()) ? "SHA256withECDSA" : "SHA256withRSA";
+        contentSigner = new JcaContentSignerBuilder(sigAlgo).setProvider("BC").build(responder.getKey());
+        X509CertificateHolder responderHolder = new X509CertificateHolder(responder.getX509().getEncoded());
+        respID = new RespID(X500Name.getInstance(responderHolder.getSubject()));
+        List<X509CertificateHolder> chain = new ArrayList<>();
+        for (X509Certificate c : responder.getX509Chain()) {
+            chain.add(new X509CertificateHolder(c.getEncoded()));
+        }
+        responderChain = chain.toArray(new X509CertificateHolder[0]);
+    }
+
+    /**
+     * @param statusFunction returns the status of a certificate - {@link CertificateStatus#GOOD} by default.
+     *  Changes take effect with the next {@link #refresh()}
+     */
+    public void setStatusFunction(Function<X509Certificate,CertificateStatus> statusFunction) {
+        this.statusFunction = statusFunction;
+    }
+
+    /**
+     * Sets the artificial latency of the responses, which is chosen uniformly between min and max
+     */
+    public void setLatency(long minLatencyMillis, long maxLatencyMillis) {
+        latency.set(minLatencyMillis, maxLatencyMillis);
+    }
+
+    /**
+     * @param validityMillis the time between thisUpdate and nextUpdate - the responses are re-signed after half of it
+     */
+    public void setValidity(long validityMillis) {
+        this.validityMillis = validityMillis;
+    }
+
+    /**
+     * Signs the responses and starts the http server on the loopback interface
+     *
+     * @param port the port or 0 for an ephemeral port
+     */
+    public void start(int port) throws IOException, OCSPException {
+        refresh();
+
+        AtomicInteger threadIdx = new AtomicInteger();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> newDaemon(r, "OcspResponder-refresh"));
+        long period = Math.max(1, validityMillis / 2);
+        scheduler.scheduleAtFixedRate(this::scheduledRefresh, period, period, TimeUnit.MILLISECONDS);
+
+        // the artificial latency blocks a thread, so the requests can't be served by a fixed pool
+        httpExecutor = Executors.newCachedThreadPool(r -> newDaemon(r, "OcspResponder-" + threadIdx.incrementAndGet()));
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(httpExecutor);
+        server.start();
+    }
+
+    /**
+     * @return the url of the responder - only valid after {@link #start(int)}
+     */
+    public URL getUrl() throws IOException {
+        InetSocketAddress addr = server.getAddress();
+        return new URL("http", addr.getHostString(), addr.getPort(), "/");
+    }
+
+    /**
+     * @return the number of served http requests
+     */
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Signs the responses of all known certificates with the current time and status
+     */
+    public void refresh() throws OCSPException {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<X509Certificate,X509Certificate> me : issuers.entrySet()) {
+            CertificateID certId = newCertificateID(me.getKey(), me.getValue());
+            responses.put(certId, sign(new CertificateID[]{certId}, new X509Certificate[]{me.getKey()}, now));
+        }
+    }
+
+    /**
+     * Answers an OCSP request in-process, i.e. without the http round trip and the latency
+     *
+     * @return the encoded OCSPResponse
+     */
+    public byte[] respond(OCSPReq ocspReq) throws OCSPException {
+        Req[] reqs = ocspReq.getRequestList();
+        if (reqs.length == 1) {
+            byte[] presigned = responses.get(reqs[0].getCertID());
+            if (presigned != null) {
+                return presigned;
+            }
+        }
+
+        CertificateID[] ids = new CertificateID[reqs.length];
+        X509Certificate[] certs = new X509Certificate[reqs.length];
+        for (int i=0; i<reqs.length; i++) {
+            ids[i] = reqs[i].getCertID();
+            certs[i] = findCertificate(ids[i]);
+        }
+        return sign(ids, certs, System.currentTimeMillis());
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            httpExecutor.shutdownNow();
+            scheduler.shutdownNow();
+            server = null;
+        }
+    }
+
+    private void scheduledRefresh() {
+        try {
+            refresh();
+        } catch (OCSPException | RuntimeException e) {
+            LOG.atWarn().withThrowable(e).log("can't refresh the OCSP responses");
+        }
+    }
+
+    /**
+     * RFC 6960 A.1 - GET {url}/{url-encoding of base-64 encoding of the DER encoding of the OCSPRequest}
+     *
+     * The decoded path can't be used, as the base64 value may contain an url-encoded '/'.
+     */
+    private static byte[] decodeGetRequest(HttpExchange exchange) {
+        String rawPath = exchange.getRequestURI().getRawPath();
+        String contextPath = exchange.getHttpContext().getPath();
+        String encoded = rawPath.startsWith(contextPath) ? rawPath.substring(contextPath.length()) : rawPath;
+        if (encoded.startsWith("/")) {
+            encoded = encoded.substring(1);
+        }
+        // a '+' of the base64 alphabet is sometimes sent unencoded and must not become a space
+        String base64 = URLDecoder.decode(encoded.replace("+", "%2B"), StandardCharsets.US_ASCII);
+        return Base64.getDecoder().decode(base64);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            byte[] reqBytes = null;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                try (InputStream is = exchange.getRequestBody()) {
+                    reqBytes = IOUtils.toByteArray(is);
+                }
+            }
+
+            byte[] respBytes;
+            try {
+                if (reqBytes == null) {
+                    reqBytes = decodeGetRequest(exchange);
+                }
+                respBytes = respond(new OCSPReq(reqBytes));
+            } catch (IOException | IllegalArgumentException e) {
+                respBytes = new OCSPRespBuilder().build(OCSPRespBuilder.MALFORMED_REQUEST, null).getEncoded();
+            } catch (OCSPException e) {
+                LOG.atWarn().withThrowable(e).log("can't create OCSP response");
+                respBytes = new OCSPRespBuilder().build(OCSPRespBuilder.INTERNAL_ERROR, null).getEncoded();
+            }
+
+            latency.pause();
+
+            exchange.getResponseHeaders().set("Content-Type", OCSP_RESPONSE_TYPE);
+            exchange.sendResponseHeaders(200, respBytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(respBytes);
+            }
+        } catch (OCSPException e) {
+            throw new IOException(e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @param certs the certificates of the ids or {@code null} for unknown certificates
+     */
+    private synchronized byte[] sign(CertificateID[] ids, X509Certificate[] certs, long now) throws OCSPException {
+        // the content signer and the digest calculator are stateful and therefore used under the lock
+        BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(respID);
+        Date thisUpdate = new Date(now);
+        Date nextUpdate = new Date(now + validityMillis);
+        for (int i=0; i<ids.length; i++) {
+            CertificateStatus status = (certs[i] == null) ? new UnknownStatus() : statusFunction.apply(certs[i]);
+            builder.addResponse(ids[i], status, thisUpdate, nextUpdate);
+        }
+        try {
+            return new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, builder.build(contentSigner, responderChain, thisUpdate)).getEncoded();
+        } catch (IOException e) {
+            throw new OCSPException("can't encode OCSP response", e);
+        }
+    }
+
+    private synchronized CertificateID newCertificateID(X509Certificate cert, X509Certificate issuer) throws OCSPException {
+        try {
+            return new CertificateID(sha1Calc, new X509CertificateHolder(issuer.getEncoded()), cert.getSerialNumber());
+        } catch (CertificateEncodingException | IOException e) {
+            throw new OCSPException("can't encode issuer certificate", e);
+        }
+    }
+
+    /**
+     * The dummy certificates share their DN, so the issuer is identified by the signature.
+     * A self-signed certificate or an issuer outside of the keystore is handled like a root certificate.
+     */
+    private static X509Certificate findIssuer(X509Certificate cert, List<X509Certificate> candidates) {
+        for (X509Certificate issuer : candidates) {
+            try {
+                cert.verify(issuer.getPublicKey());
+                return issuer;
+            } catch (GeneralSecurityException ignored) {
+            }
+        }
+        return cert;
+    }
+
+    private X509Certificate findCertificate(CertificateID certId) throws OCSPException {
+        for (Map.Entry<X509Certificate,X509Certificate> me : issuers.entrySet()) {
+            if (!me.getKey().getSerialNumber().equals(certId.getSerialNumber())) {
+                continue;
+            }
+            try {
+                if (certId.matchesIssuer(new X509CertificateHolder(me.getValue().getEncoded()), digestProvider)) {
+                    return me.getKey();
+                }
+            } catch (CertificateEncodingException | IOException e) {
+                throw new OCSPException("can't encode issuer certificate", e);
+            }
+        }
+        return null;
+    }
+
+    private static Thread newDaemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    public static void main(String[] args) throws IOException, GeneralSecurityException, OperatorCreationException, OCSPException {
+        if (args.length < 3) {
+            System.err.println("Usage: LocalOcspResponder <keystore.pfx> <storePass> <keyPass> [port] [latencyMillis]");
+            return;
+        }
+
+        DummyKeystore dk = new DummyKeystore(new File(args[0]), args[1]);
+        KeyCertPair kcp = dk.getKeyPair(0, args[2]);
+        LocalOcspResponder responder = new LocalOcspResponder(dk, kcp);
+        if (args.length > 4) {
+            long latency = Long.parseLong(args[4]);
+            responder.setLatency(latency, latency);
+        }
+        responder.start(args.length > 3 ? Integer.parseInt(args[3]) : 0);
+        System.out.println("OCSP responder listening on " + responder.getUrl() + " - press enter to stop");
+        System.in.read();
+        responder.close();
+    }
+}
@@ -0,0 +1,221 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateEncodingException;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.kiwiwings.poi.dsig.DummyKeystore.KeyCertPair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.util.IOUtils;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cmp.PKIFailureInfo;
+import org.bouncycastle.asn1.cmp.PKIStatus;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampResponseGenerator;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+
+/**
+ * Embedded HTTP RFC 3161 time-stamp authority, e.g. to benchmark the XAdES-T/X-L timestamping without network access.
+ *
+ * The tokens are signed by a key of {@link DummyKeystore#addTsaEntry(String, String, int, int)}.
+ * The token generators are stateful, so the TSA keeps one generator per allowed concurrent request - further
+ * requests wait for a free generator. The latency of the responses can be configured to simulate a remote TSA.
+ */
+public class LocalTimeStampAuthority implements Closeable {
+    private static final Logger LOG = LogManager.getLogger(LocalTimeStampAuthority.class);
+    private static final String TSP_RESPONSE_TYPE = "application/timestamp-reply";
+    /** a dummy policy of the private enterprise arc */
+    public static final String DEFAULT_POLICY = "1.3.6.1.4.1.13762.3";
+
+    private final BlockingQueue<TimeStampResponseGenerator> generators;
+    // failure responses aren't signed, so they can be created without a pooled generator
+    private final TimeStampResponseGenerator failureGenerator;
+    private final SimulatedLatency latency = new SimulatedLatency();
+    private final AtomicLong serialNumber = new AtomicLong();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private HttpServer server;
+    private ExecutorService httpExecutor;
+
+    /**
+     * @param tsaKey the RSA key and certificate chain of the TSA
+     * @param maxConcurrency the number of requests, which are processed in parallel
+     */
+    public LocalTimeStampAuthority(KeyCertPair tsaKey, int maxConcurrency)
+        throws OperatorCreationException, CertificateEncodingException, TSPException {
+        this(tsaKey, maxConcurrency, DEFAULT_POLICY);
+    }
+
+    /**
+     * @param tsaKey the RSA key and certificate chain of the TSA
+     * @param maxConcurrency the number of requests, which are processed in parallel
+     * @param policy the TSA policy oid of the tokens
+     */
+    public LocalTimeStampAuthority(KeyCertPair tsaKey, int maxConcurrency, String policy)
+        throws OperatorCreationException, CertificateEncodingException, TSPException {
+        generators = new ArrayBlockingQueue<>(maxConcurrency);
+        JcaCertStore certs = new JcaCertStore(tsaKey.getX509Chain());
+        for (int i=0; i<maxConcurrency; i++) {
+            TimeStampTokenGenerator tokenGen = new TimeStampTokenGenerator(
+                new JcaSimpleSignerInfoGeneratorBuilder().setProvider("BC").build("SHA256withRSA", tsaKey.getKey(), tsaKey.getX509()),
+                // the ESSCertID of the signing certificate is SHA-1 based
+                new JcaDigestCalculatorProviderBuilder().setProvider("BC").build().get(CertificateID.HASH_SHA1),
+                new ASN1ObjectIdentifier(policy));
+            tokenGen.addCertificates(certs);
+            generators.add(new TimeStampResponseGenerator(tokenGen, TSPAlgorithms.ALLOWED));
+        }
+        failureGenerator = generators.peek();
+    }
+
+    /**
+     * Sets the artificial latency of the responses, which is chosen uniformly between min and max
+     */
+    public void setLatency(long minLatencyMillis, long maxLatencyMillis) {
+        latency.set(minLatencyMillis, maxLatencyMillis);
+    }
+
+    /**
+     * Starts the http server on the loopback interface
+     *
+     * @param port the port or 0 for an ephemeral port
+     */
+    public void start(int port) throws IOException {
+        AtomicInteger threadIdx = new AtomicInteger();
+        // the artificial latency blocks a thread, so the requests can't be served by a fixed pool
+        httpExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "TimeStampAuthority-" + threadIdx.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(httpExecutor);
+        server.start();
+    }
+
+    /**
+     * @return the url of the TSA - only valid after {@link #start(int)}
+     */
+    public URL getUrl() throws IOException {
+        InetSocketAddress addr = server.getAddress();
+        return new URL("http", addr.getHostString(), addr.getPort(), "/");
+    }
+
+    /**
+     * @return the number of served http requests
+     */
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Answers a time-stamp request in-process, i.e. without the http round trip and the latency.
+     * Blocks if the maximum number of concurrent requests is reached.
+     *
+     * @return the encoded TimeStampResp
+     */
+    public byte[] respond(TimeStampRequest request) throws TSPException, IOException, InterruptedException {
+        TimeStampResponseGenerator gen = generators.take();
+        try {
+            BigInteger serial = BigInteger.valueOf(serialNumber.incrementAndGet());
+            return gen.generate(request, serial, new Date()).getEncoded();
+        } finally {
+            generators.add(gen);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            httpExecutor.shutdownNow();
+            server = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            byte[] reqBytes;
+            try (InputStream is = exchange.getRequestBody()) {
+                reqBytes = IOUtils.toByteArray(is);
+            }
+
+            byte[] respBytes;
+            try {
+                respBytes = respond(new TimeStampRequest(reqBytes));
+            } catch (IOException | IllegalArgumentException e) {
+                respBytes = failure(PKIFailureInfo.badDataFormat, "malformed request");
+            } catch (TSPException e) {
+                LOG.atWarn().withThrowable(e).log("can't create time-stamp response");
+                respBytes = failure(PKIFailureInfo.systemFailure, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            latency.pause();
+
+            exchange.getResponseHeaders().set("Content-Type", TSP_RESPONSE_TYPE);
+            exchange.sendResponseHeaders(200, respBytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(respBytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private byte[] failure(int failInfo, String message) throws IOException {
+        try {
+            return failureGenerator.generateFailResponse(PKIStatus.REJECTION, failInfo, message).getEncoded();
+        } catch (TSPException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, GeneralSecurityException, OperatorCreationException, TSPException {
+        if (args.length < 3) {
+            System.err.println("Usage: LocalTimeStampAuthority <keystore.pfx> <storePass> <keyPass> [port] [latencyMillis] [maxConcurrency]");
+            return;
+        }
+
+        DummyKeystore dk = new DummyKeystore(new File(args[0]), args[1]);
+        KeyCertPair kcp = dk.addTsaEntry("tsa", args[2], 2048, 24);
+        int maxConcurrency = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+        LocalTimeStampAuthority tsa = new LocalTimeStampAuthority(kcp, maxConcurrency);
+        if (args.length > 4) {
+            long latency = Long.parseLong(args[4]);
+            tsa.setLatency(latency, latency);
+        }
+        tsa.start(args.length > 3 ? Integer.parseInt(args[3]) : 0);
+        System.out.println("TSA listening on " + tsa.getUrl() + " - press enter to stop");
+        System.in.read();
+        tsa.close();
+    }
+}
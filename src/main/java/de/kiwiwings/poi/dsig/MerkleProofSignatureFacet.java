@@ -0,0 +1,95 @@
+package de.kiwiwings.poi.dsig;
+
+import java.util.Base64;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.XMLObject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.poifs.crypt.dsig.SignatureInfo;
+import org.apache.poi.poifs.crypt.dsig.facets.SignatureFacet;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Embeds the inclusion proofs of a {@link MerkleTimeStampService} as unsigned signature properties.
+ * Needs to be placed after the XAdES facets, which create the time-stamps.
+ *
+ * The XAdES UnsignedSignatureProperties allow elements of other namespaces, so a proof is added as:
+ * <pre>{@code
+ * <mp:MerkleInclusionProof xmlns:mp="urn:de.kiwiwings.poi:merkle-proof" Algorithm="...#sha256" Index="0">
+ *   <mp:Leaf>base64</mp:Leaf>
+ *   <mp:Sibling Position="left">base64</mp:Sibling>
+ *   ...
+ * </mp:MerkleInclusionProof>
+ * }</pre>
+ * The index refers to the time-stamps in document order, i.e. the SignatureTimeStamp and the SigAndRefsTimeStamp.
+ * The tsp digest of the root, which is computed from the leaf and the siblings, is the message imprint of the token.
+ */
+public class MerkleProofSignatureFacet implements SignatureFacet {
+    private static final Logger LOG = LogManager.getLogger(MerkleProofSignatureFacet.class);
+
+    public static final String MERKLE_PROOF_NS = "urn:de.kiwiwings.poi:merkle-proof";
+    private static final String XADES_NS = "http://uri.etsi.org/01903/v1.3.2#";
+    private static final String SHA256_URI = "http://www.w3.org/2001/04/xmlenc#sha256";
+
+    private final MerkleTimeStampService timeStampService;
+
+    public MerkleProofSignatureFacet(MerkleTimeStampService timeStampService) {
+        this.timeStampService = timeStampService;
+    }
+
+    /**
+     * Drops the proofs of a previous signature of the SignatureInfo, which failed before its post-sign,
+     * so they aren't embedded into this signature
+     */
+    @Override
+    public void preSign(SignatureInfo signatureInfo, Document document, List<Reference> references, List<XMLObject> objects) {
+        List<MerkleTimeStampService.Proof> leftover = timeStampService.takeProofs(signatureInfo);
+        if (!leftover.isEmpty()) {
+            LOG.atDebug().log("dropped {} merkle proofs of a failed signature", leftover.size());
+        }
+    }
+
+    @Override
+    public void postSign(SignatureInfo signatureInfo, Document document) {
+        List<MerkleTimeStampService.Proof> proofs = timeStampService.takeProofs(signatureInfo);
+        if (proofs.isEmpty()) {
+            return;
+        }
+
+        NodeList nl = document.getElementsByTagNameNS(XADES_NS, "UnsignedSignatureProperties");
+        if (nl.getLength() != 1) {
+            LOG.atWarn().log("UnsignedSignatureProperties not found - the merkle proofs can't be embedded");
+            return;
+        }
+        Element unsignedSigProps = (Element)nl.item(0);
+        Base64.Encoder enc = Base64.getEncoder();
+
+        for (int i=0; i<proofs.size(); i++) {
+            MerkleTimeStampService.Proof proof = proofs.get(i);
+            Element proofEl = document.createElementNS(MERKLE_PROOF_NS, "mp:MerkleInclusionProof");
+            proofEl.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:mp", MERKLE_PROOF_NS);
+            proofEl.setAttribute("Algorithm", SHA256_URI);
+            proofEl.setAttribute("Index", Integer.toString(i));
+
+            Element leafEl = document.createElementNS(MERKLE_PROOF_NS, "mp:Leaf");
+            leafEl.setTextContent(enc.encodeToString(proof.getLeaf()));
+            proofEl.appendChild(leafEl);
+
+            List<byte[]> siblings = proof.getSiblings();
+            for (int level=0; level<siblings.size(); level++) {
+                Element siblingEl = document.createElementNS(MERKLE_PROOF_NS, "mp:Sibling");
+                siblingEl.setAttribute("Position", proof.isLeftSibling(level) ? "left" : "right");
+                siblingEl.setTextContent(enc.encodeToString(siblings.get(level)));
+                proofEl.appendChild(siblingEl);
+            }
+
+            unsignedSigProps.appendChild(proofEl);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.Closeable;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.apache.poi.poifs.crypt.HashAlgorithm;
+import org.apache.poi.poifs.crypt.CryptoFunctions;
+import org.apache.poi.poifs.crypt.dsig.SignatureInfo;
+import org.apache.poi.poifs.crypt.dsig.services.RevocationData;
+import org.apache.poi.poifs.crypt.dsig.services.TSPTimeStampService;
+import org.apache.poi.poifs.crypt.dsig.services.TimeStampService;
+
+/**
+ * TimeStampService, which aggregates the time-stamp requests of concurrent signatures into one request.
+ *
+ * The data of the requests within a batch window is hashed into the leaves of a Merkle tree and only the
+ * root is time-stamped by the delegate service. Each signature gets the shared token and the inclusion proof
+ * of its data, which links the data to the root. The proofs need to be embedded by a
+ * {@link MerkleProofSignatureFacet}, which is placed after the XAdES facets.
+ *
+ * A plain XAdES validator can't verify an aggregated token, as the message imprint is the root and not the
+ * signature value. Therefore signatures which need to be compliant, can be excluded via
+ * {@link #setIndividualTokenFilter(Predicate)} and get a per-signature token of the delegate.
+ *
+ * The tree follows RFC 6962: leaf = H(0x00 || data), node = H(0x01 || left || right). An unpaired node of a
+ * level is promoted to the next level.
+ */
+public class MerkleTimeStampService implements TimeStampService, Closeable {
+    public static final HashAlgorithm TREE_HASH = HashAlgorithm.sha256;
+
+    /**
+     * Inclusion proof of a time-stamped data within a batch
+     */
+    public static final class Proof {
+        private final byte[] leaf;
+        private final List<byte[]> siblings;
+        // true, if the sibling of the level is the left node
+        private final List<Boolean> leftSiblings;
+
+        Proof(byte[] leaf, List<byte[]> siblings, List<Boolean> leftSiblings) {
+            this.leaf = leaf;
+            this.siblings = siblings;
+            this.leftSiblings = leftSiblings;
+        }
+
+        public byte[] getLeaf() {
+            return leaf;
+        }
+
+        public List<byte[]> getSiblings() {
+            return Collections.unmodifiableList(siblings);
+        }
+
+        public boolean isLeftSibling(int level) {
+            return leftSiblings.get(level);
+        }
+
+        /**
+         * @return the root, which is calculated from the leaf and the path - the proof is valid, if it
+         *  matches the message imprint source of the time-stamp token
+         */
+        public byte[] computeRoot() {
+            byte[] node = leaf;
+            for (int i=0; i<siblings.size(); i++) {
+                node = leftSiblings.get(i) ? hashNode(siblings.get(i), node) : hashNode(node, siblings.get(i));
+            }
+            return node;
+        }
+    }
+
+    private static final class Batch {
+        private final SignatureInfo firstSigner;
+        private final List<byte[]> leaves = new ArrayList<>();
+        private final CompletableFuture<BatchResult> result = new CompletableFuture<>();
+
+        Batch(SignatureInfo firstSigner) {
+            this.firstSigner = firstSigner;
+        }
+    }
+
+    private static final class BatchResult {
+        private final byte[] token;
+        private final List<List<byte[]>> levels;
+        private final RevocationData revocationData;
+
+        BatchResult(byte[] token, List<List<byte[]>> levels, RevocationData revocationData) {
+            this.token = token;
+            this.levels = levels;
+            this.revocationData = revocationData;
+        }
+    }
+
+    private final TimeStampService delegate;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService requestExecutor;
+    private final Map<SignatureInfo,List<Proof>> proofs = Collections.synchronizedMap(new WeakHashMap<>());
+    private final LongAdder aggregatedRequests = new LongAdder();
+    private final LongAdder delegateRequests = new LongAdder();
+    private Predicate<SignatureInfo> individualTokenFilter = si -> false;
+    private Batch current;
+    private boolean closed;
+
+    /**
+     * Creates a service which uses the default {@link TSPTimeStampService} with the TSP settings of the
+     * first signature of each batch
+     *
+     * @param windowMillis the time, a batch collects requests
+     * @param maxBatchSize the number of requests, which closes a batch before the end of its window
+     */
+    public MerkleTimeStampService(long windowMillis, int maxBatchSize) {
+        this(new TSPTimeStampService(), windowMillis, maxBatchSize);
+    }
+
+    /**
+     * @param delegate the service, which time-stamps the roots and the individual requests
+     * @param windowMillis the time, a batch collects requests
+     * @param maxBatchSize the number of requests, which closes a batch before the end of its window
+     */
+    public MerkleTimeStampService(TimeStampService delegate, long windowMillis, int maxBatchSize) {
+        this.delegate = delegate;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "MerkleTimeStampService");
+            t.setDaemon(true);
+            return t;
+        });
+        // the root requests wait for the TSA, so they don't run on the scheduler, which times the next windows
+        AtomicInteger requestIdx = new AtomicInteger();
+        requestExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "MerkleTimeStampService-request-" + requestIdx.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param individualTokenFilter returns true for signatures, which need their own time-stamp token
+     */
+    public void setIndividualTokenFilter(Predicate<SignatureInfo> individualTokenFilter) {
+        this.individualTokenFilter = individualTokenFilter;
+    }
+
+    @Override
+    public byte[] timeStamp(SignatureInfo signatureInfo, byte[] data, RevocationData revocationData) throws Exception {
+        if (individualTokenFilter.test(signatureInfo)) {
+            delegateRequests.increment();
+            return delegate.timeStamp(signatureInfo, data, revocationData);
+        }
+
+        aggregatedRequests.increment();
+        byte[] leaf = hashLeaf(data);
+        Batch batch;
+        int index;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("merkle time-stamp service is closed");
+            }
+            if (current == null) {
+                Batch b = current = new Batch(signatureInfo);
+                scheduler.schedule(() -> requestExecutor.execute(() -> flush(b)), windowMillis, TimeUnit.MILLISECONDS);
+            }
+            batch = current;
+            index = batch.leaves.size();
+            batch.leaves.add(leaf);
+            if (batch.leaves.size() >= maxBatchSize) {
+                requestExecutor.execute(() -> flush(batch));
+            }
+        }
+
+        BatchResult result;
+        try {
+            result = batch.result.get();
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+        }
+
+        proofs.computeIfAbsent(signatureInfo, k -> Collections.synchronizedList(new ArrayList<>())).add(createProof(result.levels, index));
+
+        RevocationData rd = result.revocationData;
+        rd.getCRLs().forEach(revocationData::addCRL);
+        rd.getOCSPs().forEach(revocationData::addOCSP);
+        for (X509Certificate x509 : rd.getX509chain()) {
+            revocationData.addCertificate(x509);
+        }
+        return result.token;
+    }
+
+    /**
+     * Removes the proofs of the time-stamps of a signature in request order, i.e. for XAdES-X-L
+     * the proof of the signature time-stamp and then of the SigAndRefs time-stamp.
+     * The proofs are kept per SignatureInfo, so a signature, which is reused for the next document,
+     * needs to take the leftover proofs of a failed signature before it's time-stamped again.
+     *
+     * @return the proofs or an empty list, if the signature used individual tokens
+     */
+    public List<Proof> takeProofs(SignatureInfo signatureInfo) {
+        List<Proof> list = proofs.remove(signatureInfo);
+        return list == null ? Collections.emptyList() : list;
+    }
+
+    /**
+     * @return the number of time-stamps, which were answered by an aggregated token
+     */
+    public long getAggregatedRequests() {
+        return aggregatedRequests.sum();
+    }
+
+    /**
+     * @return the number of requests of the delegate, i.e. the roots and the individual tokens
+     */
+    public long getDelegateRequests() {
+        return delegateRequests.sum();
+    }
+
+    /**
+     * Stops the batching - the signers of the open batch fail, the batches, which are already sent to
+     * the delegate, are completed
+     */
+    @Override
+    public void close() {
+        Batch pending;
+        synchronized (this) {
+            closed = true;
+            pending = current;
+            current = null;
+        }
+        if (pending != null) {
+            pending.result.completeExceptionally(new IllegalStateException("merkle time-stamp service was closed before the batch was time-stamped"));
+        }
+        // the window timers of the flushed batches are obsolete
+        scheduler.shutdownNow();
+        requestExecutor.shutdown();
+    }
+
+    private void flush(Batch batch) {
+        synchronized (this) {
+            if (current != batch) {
+                // already flushed because of the batch size
+                return;
+            }
+            current = null;
+        }
+
+        try {
+            List<List<byte[]>> levels = buildTree(batch.leaves);
+            byte[] root = levels.get(levels.size()-1).get(0);
+            RevocationData rd = new RevocationData();
+            delegateRequests.increment();
+            // the first signer is waiting for the result, so its config and TSP http client can be used meanwhile
+            byte[] token = delegate.timeStamp(batch.firstSigner, root, rd);
+            batch.result.complete(new BatchResult(token, levels, rd));
+        } catch (Exception | Error e) {
+            batch.result.completeExceptionally(e);
+        }
+    }
+
+    private static List<List<byte[]>> buildTree(List<byte[]> leaves) {
+        List<List<byte[]>> levels = new ArrayList<>();
+        List<byte[]> level = new ArrayList<>(leaves);
+        levels.add(level);
+        while (level.size() > 1) {
+            List<byte[]> parent = new ArrayList<>((level.size()+1)/2);
+            for (int i=0; i<level.size(); i+=2) {
+                parent.add(i+1 < level.size() ? hashNode(level.get(i), level.get(i+1)) : level.get(i));
+            }
+            levels.add(parent);
+            level = parent;
+        }
+        return levels;
+    }
+
+    private static Proof createProof(List<List<byte[]>> levels, int index) {
+        List<byte[]> siblings = new ArrayList<>();
+        List<Boolean> leftSiblings = new ArrayList<>();
+        int idx = index;
+        for (int l=0; l<levels.size()-1; l++) {
+            List<byte[]> level = levels.get(l);
+            int sibling = idx ^ 1;
+            if (sibling < level.size()) {
+                siblings.add(level.get(sibling));
+                leftSiblings.add(sibling < idx);
+            }
+            idx /= 2;
+        }
+        return new Proof(levels.get(0).get(index), siblings, leftSiblings);
+    }
+
+    private static byte[] hashLeaf(byte[] data) {
+        MessageDigest md = CryptoFunctions.getMessageDigest(TREE_HASH);
+        md.update((byte)0);
+        return md.digest(data);
+    }
+
+    private static byte[] hashNode(byte[] left, byte[] right) {
+        MessageDigest md = CryptoFunctions.getMessageDigest(TREE_HASH);
+        md.update((byte)1);
+        md.update(left);
+        return md.digest(right);
+    }
+}
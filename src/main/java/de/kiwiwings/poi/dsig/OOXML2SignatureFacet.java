@@ -2,35 +2,87 @@ package de.kiwiwings.poi.dsig;
 
 import static de.kiwiwings.poi.dsig.SignatureFacetHelper.newReference;
 
-import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.XMLConstants;
+import javax.xml.crypto.MarshalException;
 import javax.xml.crypto.XMLStructure;
 import javax.xml.crypto.dom.DOMStructure;
-import javax.xml.crypto.dsig.DigestMethod;
 import javax.xml.crypto.dsig.Reference;
 import javax.xml.crypto.dsig.SignatureProperties;
 import javax.xml.crypto.dsig.SignatureProperty;
-import javax.xml.crypto.dsig.Transform;
 import javax.xml.crypto.dsig.XMLObject;
 import javax.xml.crypto.dsig.XMLSignatureException;
 import javax.xml.crypto.dsig.XMLSignatureFactory;
 
 import com.microsoft.schemas.office.x2006.digsig.CTSignatureInfoV1;
 import com.microsoft.schemas.office.x2006.digsig.SignatureInfoV1Document;
+import org.apache.poi.ooxml.util.DocumentHelper;
 import org.apache.poi.poifs.crypt.HashAlgorithm;
 import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
 import org.apache.poi.poifs.crypt.dsig.SignatureInfo;
 import org.apache.poi.poifs.crypt.dsig.facets.OOXMLSignatureFacet;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
 public class OOXML2SignatureFacet extends OOXMLSignatureFacet {
+    /**
+     * Encoded images keyed by the image array instance of the signature config -
+     * the config only hands out its own copy, so the array isn't modified later
+     */
+    private static final Map<byte[],String> ENCODED_IMAGES = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final String OFFICE_OBJECT_ID = "idOfficeObject";
+    private static final String VALID_IMAGE_ID = "idValidSigLnImg";
+    private static final String INVALID_IMAGE_ID = "idInvalidSigLnImg";
+
+    /**
+     * The objects of {@link #addSignatureInfo} only depend on the signature config, i.e. they are the same
+     * for all documents signed with an unchanged config. The SignatureInfoV1 element and the digests of the
+     * objects are therefore cached for the config snapshot given by the key.
+     */
+    private static class SignatureInfoCache {
+        private final List<Object> key;
+        private final Element signatureInfoV1;
+        private final Map<String,byte[]> digests = new ConcurrentHashMap<>();
+
+        SignatureInfoCache(List<Object> key, Element signatureInfoV1) {
+            this.key = key;
+            this.signatureInfoV1 = signatureInfoV1;
+        }
+    }
+
+    private volatile SignatureInfoCache signatureInfoCache;
 
+    /** the objects of a signature, whose digests are not cached yet */
+    private static class PendingDigests {
+        private final SignatureInfoCache cache;
+        private final Set<String> objectIds = new HashSet<>();
+
+        PendingDigests(SignatureInfoCache cache) {
+            this.cache = cache;
+        }
+    }
+
+    /**
+     * The pending digests keyed by the signature document, as the pre-sign and the post-sign may run on
+     * different threads, e.g. in the {@link AsyncSigner}. The values don't reference the documents, so the
+     * entries of failed signatures are released with their document.
+     */
+    private final Map<Document,PendingDigests> pendingDigests = Collections.synchronizedMap(new WeakHashMap<>());
+
+    @Override
     protected void addSignatureInfo(
         SignatureInfo signatureInfo
         , Document document
@@ -40,32 +92,17 @@ public class OOXML2SignatureFacet extends OOXMLSignatureFacet {
         SignatureConfig signatureConfig = signatureInfo.getSignatureConfig();
         XMLSignatureFactory sigFac = signatureInfo.getSignatureFactory();
 
-        List<XMLStructure> objectContent = new ArrayList<>();
-
-        SignatureInfoV1Document sigV1 = SignatureInfoV1Document.Factory.newInstance();
-        CTSignatureInfoV1 ctSigV1 = sigV1.addNewSignatureInfoV1();
-        if (signatureConfig.getDigestAlgo() != HashAlgorithm.sha1) {
-            ctSigV1.setManifestHashAlgorithm(signatureConfig.getDigestMethodUri());
-        }
+        SignatureInfoCache cache = getSignatureInfoCache(signatureInfo);
+        PendingDigests pending = new PendingDigests(cache);
+        pendingDigests.put(document, pending);
 
-        String desc = signatureConfig.getSignatureDescription();
-        if (desc != null) {
-            ctSigV1.setSignatureComments(desc);
-        }
+        List<XMLStructure> objectContent = new ArrayList<>();
 
-        byte[] image = signatureConfig.getSignatureImage();
-        if (image == null) {
-            ctSigV1.setSignatureType(1);
-        } else {
-            ctSigV1.setSetupID(signatureConfig.getSignatureImageSetupId().toString());
-            ctSigV1.setSignatureImage(image);
-            ctSigV1.setSignatureType(2);
+        Element n;
+        synchronized (cache) {
+            n = (Element)document.importNode(cache.signatureInfoV1, true);
         }
 
-
-        Element n = (Element)document.importNode(ctSigV1.getDomNode(), true);
-        n.setAttributeNS(XML_NS, XMLConstants.XMLNS_ATTRIBUTE, MS_DIGSIG_NS);
-
         List<XMLStructure> signatureInfoContent = new ArrayList<>();
         signatureInfoContent.add(new DOMStructure(n));
         SignatureProperty signatureInfoSignatureProperty = sigFac
@@ -78,31 +115,120 @@ public class OOXML2SignatureFacet extends OOXMLSignatureFacet {
             .newSignatureProperties(signaturePropertyContent, null);
         objectContent.add(signatureProperties);
 
-        String objectId = "idOfficeObject";
-        objects.add(sigFac.newXMLObject(objectContent, objectId, null, null));
+        objects.add(sigFac.newXMLObject(objectContent, OFFICE_OBJECT_ID, null, null));
+        references.add(newObjectReference(signatureInfo, pending, OFFICE_OBJECT_ID));
 
-        Reference reference = newReference(signatureInfo, "#" + objectId, null, XML_DIGSIG_NS+"Object");
-        references.add(reference);
-
-        Base64.Encoder enc = Base64.getEncoder();
         byte[] imageValid = signatureConfig.getSignatureImageValid();
         if (imageValid != null) {
-            objectId = "idValidSigLnImg";
-            DOMStructure tn = new DOMStructure(document.createTextNode(enc.encodeToString(imageValid)));
-            objects.add(sigFac.newXMLObject(Collections.singletonList(tn), objectId, null, null));
-
-            reference = newReference(signatureInfo, "#" + objectId, null, XML_DIGSIG_NS+"Object");
-            references.add(reference);
+            DOMStructure tn = new DOMStructure(document.createTextNode(encodeImage(imageValid)));
+            objects.add(sigFac.newXMLObject(Collections.singletonList(tn), VALID_IMAGE_ID, null, null));
+            references.add(newObjectReference(signatureInfo, pending, VALID_IMAGE_ID));
         }
 
         byte[] imageInvalid = signatureConfig.getSignatureImageInvalid();
         if (imageInvalid != null) {
-            objectId = "idInvalidSigLnImg";
-            DOMStructure tn = new DOMStructure(document.createTextNode(enc.encodeToString(imageInvalid)));
-            objects.add(sigFac.newXMLObject(Collections.singletonList(tn), objectId, null, null));
+            DOMStructure tn = new DOMStructure(document.createTextNode(encodeImage(imageInvalid)));
+            objects.add(sigFac.newXMLObject(Collections.singletonList(tn), INVALID_IMAGE_ID, null, null));
+            references.add(newObjectReference(signatureInfo, pending, INVALID_IMAGE_ID));
+        }
+    }
+
+    @Override
+    public void postSign(SignatureInfo signatureInfo, Document document) throws MarshalException {
+        super.postSign(signatureInfo, document);
+
+        // the references have been digested in the meantime - a document, which was serialized between
+        // the pre- and the post-sign like in the RemoteSigner, isn't known and its digests aren't cached
+        PendingDigests pending = pendingDigests.remove(document);
+        if (pending == null || pending.objectIds.isEmpty()) {
+            return;
+        }
+        NodeList refs = document.getElementsByTagNameNS(XML_DIGSIG_NS, "Reference");
+        for (int i=0; i<refs.getLength(); i++) {
+            Element ref = (Element)refs.item(i);
+            String uri = ref.getAttribute("URI");
+            if (!uri.startsWith("#") || !pending.objectIds.contains(uri.substring(1))) {
+                continue;
+            }
+            NodeList digestValue = ref.getElementsByTagNameNS(XML_DIGSIG_NS, "DigestValue");
+            if (digestValue.getLength() > 0) {
+                // the base64 value may be wrapped
+                byte[] digest = Base64.getMimeDecoder().decode(digestValue.item(0).getTextContent());
+                pending.cache.digests.putIfAbsent(uri.substring(1), digest);
+            }
+        }
+    }
+
+    private Reference newObjectReference(SignatureInfo signatureInfo, PendingDigests pending, String objectId)
+        throws XMLSignatureException {
+        byte[] digest = pending.cache.digests.get(objectId);
+        if (digest == null) {
+            pending.objectIds.add(objectId);
+        }
+        return newReference(signatureInfo, "#" + objectId, null, XML_DIGSIG_NS+"Object", digest);
+    }
+
+    private SignatureInfoCache getSignatureInfoCache(SignatureInfo signatureInfo) {
+        SignatureConfig signatureConfig = signatureInfo.getSignatureConfig();
 
-            reference = newReference(signatureInfo, "#" + objectId, null, XML_DIGSIG_NS+"Object");
-            references.add(reference);
+        // the image arrays are compared by identity - see ENCODED_IMAGES
+        List<Object> key = Arrays.asList(
+            signatureConfig.getDigestAlgo(),
+            signatureConfig.getPackageSignatureId(),
+            signatureConfig.getSignatureDescription(),
+            signatureConfig.getSignatureImage(),
+            signatureConfig.getSignatureImageSetupId(),
+            signatureConfig.getSignatureImageValid(),
+            signatureConfig.getSignatureImageInvalid(),
+            new HashMap<>(signatureConfig.getNamespacePrefixes()),
+            signatureConfig.getSignatureMarshalListener(),
+            signatureInfo.getSignatureFactory().getProvider().getName()
+        );
+
+        SignatureInfoCache cache = signatureInfoCache;
+        if (cache == null || !cache.key.equals(key)) {
+            CTSignatureInfoV1 ctSigV1 = createSignatureInfoV1(signatureInfo).getSignatureInfoV1();
+            Element n = (Element)DocumentHelper.createDocument().importNode(ctSigV1.getDomNode(), true);
+            n.setAttributeNS(XML_NS, XMLConstants.XMLNS_ATTRIBUTE, MS_DIGSIG_NS);
+            cache = new SignatureInfoCache(key, n);
+            signatureInfoCache = cache;
+        }
+        return cache;
+    }
+
+    @Override
+    protected SignatureInfoV1Document createSignatureInfoV1(SignatureInfo signatureInfo) {
+        SignatureConfig signatureConfig = signatureInfo.getSignatureConfig();
+
+        SignatureInfoV1Document sigV1 = SignatureInfoV1Document.Factory.newInstance();
+        CTSignatureInfoV1 ctSigV1 = sigV1.addNewSignatureInfoV1();
+        if (signatureConfig.getDigestAlgo() != HashAlgorithm.sha1) {
+            ctSigV1.setManifestHashAlgorithm(signatureConfig.getDigestMethodUri());
         }
+
+        String desc = signatureConfig.getSignatureDescription();
+        if (desc != null) {
+            ctSigV1.setSignatureComments(desc);
+        }
+
+        byte[] image = signatureConfig.getSignatureImage();
+        if (image == null) {
+            ctSigV1.setSignatureType(1);
+        } else {
+            ctSigV1.setSetupID(signatureConfig.getSignatureImageSetupId().toString());
+            ctSigV1.setSignatureImage(image);
+            ctSigV1.setSignatureType(2);
+        }
+
+        return sigV1;
+    }
+
+    /**
+     * The signature line images are embedded as base64 text nodes. As the DOM text can't be
+     * produced lazily, the encoded text is created on first use and shared by all signatures,
+     * which use the same image array of a signature config.
+     */
+    private static String encodeImage(byte[] image) {
+        return ENCODED_IMAGES.computeIfAbsent(image, Base64.getEncoder()::encodeToString);
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,307 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import de.kiwiwings.poi.dsig.DummyKeystore.KeyCertPair;
+import org.apache.commons.io.output.UnsynchronizedByteArrayOutputStream;
+import org.apache.poi.ooxml.util.DocumentHelper;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.poifs.crypt.HashAlgorithm;
+import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
+import org.apache.poi.poifs.crypt.dsig.SignatureInfo;
+import org.apache.poi.poifs.crypt.dsig.facets.KeyInfoSignatureFacet;
+import org.apache.poi.poifs.crypt.dsig.facets.Office2010SignatureFacet;
+import org.apache.poi.util.IOUtils;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Two-phase signing for a remote signing service, e.g. a HSM, which only signs digests.
+ *
+ * {@link #prepare(OPCPackage)} runs the pre-sign of the facets and returns a {@link SigningRequest} with the
+ * digest of the canonicalized SignedInfo and the serialized signature document. The package can be released
+ * afterwards. {@link #complete(OPCPackage, SigningRequest, byte[])} injects the signature value, which was
+ * computed elsewhere, runs the post-sign of the facets (e.g. the time-stamps) and writes the signature into
+ * the package. The package must not be modified between the phases, as the references were digested in the
+ * first phase.
+ *
+ * The signing key isn't needed locally. The xml signature api of the pre-sign insists on a private key,
+ * so a throw-away placeholder key is used, whose signature value is replaced in the second phase.
+ * A RemoteSigner isn't thread-safe, like the {@link SignatureConfig}.
+ */
+public class RemoteSigner {
+    /**
+     * The state between the phases
+     */
+    public static final class SigningRequest {
+        private static final int VERSION = 1;
+
+        private final HashAlgorithm digestAlgo;
+        private final byte[] digest;
+        private final byte[] signatureXml;
+
+        SigningRequest(HashAlgorithm digestAlgo, byte[] digest, byte[] signatureXml) {
+            this.digestAlgo = digestAlgo;
+            this.digest = digest;
+            this.signatureXml = signatureXml;
+        }
+
+        public HashAlgorithm getDigestAlgo() {
+            return digestAlgo;
+        }
+
+        /**
+         * @return the digest, which needs to be signed with PKCS#1 v1.5, i.e. the input of NONEwithRSA is the
+         *  DigestInfo of the digest
+         */
+        public byte[] getDigest() {
+            return digest.clone();
+        }
+
+        /**
+         * @return the compact state, i.e. the digest and the deflated signature document
+         */
+        public byte[] getEncoded() throws IOException {
+            UnsynchronizedByteArrayOutputStream bos = new UnsynchronizedByteArrayOutputStream();
+            try (DataOutputStream dos = new DataOutputStream(bos)) {
+                dos.writeInt(VERSION);
+                dos.writeUTF(digestAlgo.name());
+                dos.writeShort(digest.length);
+                dos.write(digest);
+                UnsynchronizedByteArrayOutputStream xml = new UnsynchronizedByteArrayOutputStream();
+                try (OutputStream os = new DeflaterOutputStream(xml)) {
+                    os.write(signatureXml);
+                }
+                dos.writeInt(xml.size());
+                xml.writeTo(dos);
+            }
+            return bos.toByteArray();
+        }
+
+        public static SigningRequest fromEncoded(byte[] encoded) throws IOException {
+            try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(encoded))) {
+                int version = dis.readInt();
+                if (version != VERSION) {
+                    throw new IOException("unsupported signing request version " + version);
+                }
+                HashAlgorithm digestAlgo = HashAlgorithm.valueOf(dis.readUTF());
+                byte[] digest = new byte[dis.readUnsignedShort()];
+                dis.readFully(digest);
+                byte[] deflated = new byte[dis.readInt()];
+                dis.readFully(deflated);
+                try (InputStream is = new InflaterInputStream(new ByteArrayInputStream(deflated))) {
+                    return new SigningRequest(digestAlgo, digest, IOUtils.toByteArray(is));
+                }
+            }
+        }
+    }
+
+    private static final class PlaceholderKey {
+        // big enough for the DigestInfo of SHA-512
+        static final PrivateKey INSTANCE = generate();
+
+        private static PrivateKey generate() {
+            try {
+                return KeyPairPool.generateKeyPair("RSA", 1024).getPrivate();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private final SignatureConfig signatureConfig;
+    private boolean verifySignatureValue = true;
+
+    /**
+     * @param signatureConfig the config without a private key - the same config needs to be used in both phases
+     */
+    public RemoteSigner(SignatureConfig signatureConfig) {
+        this.signatureConfig = signatureConfig;
+        if (signatureConfig.getKey() == null) {
+            signatureConfig.setKey(PlaceholderKey.INSTANCE);
+        }
+    }
+
+    /**
+     * @param verifySignatureValue if true, the injected signature values are verified against the signing certificate
+     */
+    public void setVerifySignatureValue(boolean verifySignatureValue) {
+        this.verifySignatureValue = verifySignatureValue;
+    }
+
+    /**
+     * Runs the first phase - the signing time is the time of the call
+     */
+    public SigningRequest prepare(OPCPackage pkg) throws XMLSignatureException, MarshalException {
+        signatureConfig.setExecutionTime(new Date());
+        SignatureInfo si = new SignatureInfo();
+        si.setSignatureConfig(signatureConfig);
+        si.setOpcPackage(pkg);
+        DOMSignContext xmlSignContext = si.createXMLSignContext(DocumentHelper.createDocument());
+        byte[] digest = SignerSession.digestSignedInfo(xmlSignContext, si.preSign(xmlSignContext), signatureConfig.getDigestAlgo());
+        return new SigningRequest(signatureConfig.getDigestAlgo(), digest, serialize((Document)xmlSignContext.getParent()));
+    }
+
+    /**
+     * Runs the second phase
+     *
+     * @param pkg the unmodified package of the first phase
+     * @param signatureValue the signature of the digest of the request
+     */
+    public void complete(OPCPackage pkg, SigningRequest request, byte[] signatureValue)
+        throws MarshalException, IOException, GeneralSecurityException {
+        if (request.digestAlgo != signatureConfig.getDigestAlgo()) {
+            throw new IllegalArgumentException("the request wasn't created with the digest algorithm of the config");
+        }
+        if (verifySignatureValue) {
+            verify(request, signatureValue);
+        }
+
+        Document document;
+        try (InputStream is = new ByteArrayInputStream(request.signatureXml)) {
+            document = DocumentHelper.readDocument(is);
+        } catch (SAXException e) {
+            throw new IOException("invalid signature document", e);
+        }
+
+        SignatureInfo si = new SignatureInfo();
+        si.setSignatureConfig(signatureConfig);
+        si.setOpcPackage(pkg);
+        // initializes the xml provider for the facets
+        DOMSignContext xmlSignContext = si.createXMLSignContext(document);
+        si.postSign(xmlSignContext, Base64.getEncoder().encodeToString(signatureValue));
+    }
+
+    private void verify(SigningRequest request, byte[] signatureValue) throws GeneralSecurityException {
+        X509Certificate signer = signatureConfig.getSigningCertificateChain().get(0);
+        Signature sig = Signature.getInstance("NONEwithRSA");
+        sig.initVerify(signer.getPublicKey());
+        sig.update(SignerSession.digestInfoPrefix(request.digestAlgo));
+        sig.update(request.digest);
+        if (!sig.verify(signatureValue)) {
+            throw new GeneralSecurityException("the signature value doesn't match the signing certificate");
+        }
+    }
+
+    private static byte[] serialize(Document document) throws MarshalException {
+        try {
+            Transformer t = XMLHelper.newTransformer();
+            t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            t.setOutputProperty(OutputKeys.INDENT, "no");
+            UnsynchronizedByteArrayOutputStream bos = new UnsynchronizedByteArrayOutputStream();
+            t.transform(new DOMSource(document), new StreamResult(bos));
+            return bos.toByteArray();
+        } catch (TransformerException e) {
+            throw new MarshalException(e);
+        }
+    }
+
+    /**
+     * Signs a set of documents in two phases with a local {@link SignerSession} as stand-in for the remote service
+     */
+    public static void main(String[] args) throws IOException, GeneralSecurityException, OperatorCreationException,
+        XMLSignatureException, MarshalException, InvalidFormatException {
+        int documents = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+
+        DummyKeystore ks = new DummyKeystore("storePass");
+        KeyCertPair kcp = ks.addEntry("signer", "keyPass", 2048, 12);
+
+        SignatureConfig cfg = new SignatureConfig();
+        cfg.setSigningCertificateChain(kcp.getX509Chain());
+        cfg.setSignatureFacets(Arrays.asList(
+            new OOXML2SignatureFacet(),
+            new KeyInfoSignatureFacet(),
+            new XAdES2SignatureFacet(),
+            new Office2010SignatureFacet()
+        ));
+        RemoteSigner remoteSigner = new RemoteSigner(cfg);
+
+        Path dir = Files.createTempDirectory("remote-sign");
+        try {
+            // phase one - only the encoded requests are kept
+            List<Path> files = new ArrayList<>();
+            List<byte[]> requests = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i=0; i<documents; i++) {
+                Path file = dir.resolve(String.format(Locale.ROOT, "doc%05d.xlsx", i));
+                try (XSSFWorkbook wb = new XSSFWorkbook();
+                     OutputStream os = Files.newOutputStream(file)) {
+                    wb.createSheet().createRow(0).createCell(0).setCellValue("document " + i);
+                    wb.write(os);
+                }
+                try (OPCPackage pkg = OPCPackage.open(file.toFile(), PackageAccess.READ)) {
+                    requests.add(remoteSigner.prepare(pkg).getEncoded());
+                }
+                files.add(file);
+            }
+            long prepared = System.nanoTime();
+
+            // the signing service
+            List<byte[]> signatureValues = new ArrayList<>();
+            try (SignerSession session = new SignerSession(kcp, cfg.getDigestAlgo())) {
+                for (byte[] req : requests) {
+                    signatureValues.add(session.sign(SigningRequest.fromEncoded(req).getDigest()));
+                }
+            }
+            long signed = System.nanoTime();
+
+            // phase two
+            for (int i=0; i<documents; i++) {
+                try (OPCPackage pkg = OPCPackage.open(files.get(i).toFile(), PackageAccess.READ_WRITE)) {
+                    remoteSigner.complete(pkg, SigningRequest.fromEncoded(requests.get(i)), signatureValues.get(i));
+                }
+            }
+            long completed = System.nanoTime();
+
+            int stateBytes = requests.stream().mapToInt(r -> r.length).sum();
+            System.out.printf(Locale.ROOT, "%d documents: prepare %.1fms, sign %.1fms, complete %.1fms - %d bytes state per document%n",
+                documents, (prepared-start)/1e6, (signed-prepared)/1e6, (completed-signed)/1e6, stateBytes / Math.max(1, documents));
+
+            try (OPCPackage pkg = OPCPackage.open(files.get(0).toFile(), PackageAccess.READ)) {
+                SignatureInfo si = new SignatureInfo();
+                si.setSignatureConfig(new SignatureConfig());
+                si.setOpcPackage(pkg);
+                System.out.println("signature of " + files.get(0).getFileName() + " is valid: " + si.verifySignature());
+            }
+        } finally {
+            for (File f : dir.toFile().listFiles()) {
+                f.delete();
+            }
+            Files.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.poifs.crypt.dsig.services.RevocationData;
+import org.apache.poi.poifs.crypt.dsig.services.RevocationDataService;
+import org.bouncycastle.asn1.ocsp.CertID;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+/**
+ * RevocationDataService, which caches the OCSP responses and CRLs of a source until their nextUpdate.
+ *
+ * The OCSP responses are cached by their {@link CertificateID}, the CRLs by the issuer DN of the certificate.
+ * An entry expires at the earliest nextUpdate of its responses or CRLs. If a response has no nextUpdate,
+ * e.g. the OCSP responder always has newer information, its thisUpdate plus the default validity is used.
+ * Empty or already outdated results are cached for the default validity.
+ * Concurrent lookups of the same key wait for the first one, so the source is asked at most once per
+ * validity window. The least recently used entries are evicted, when the maximum size is reached.
+ *
+ * The cache can be saved to and loaded from a snapshot file, so a restarted signer doesn't need to refetch
+ * the still valid entries.
+ */
+public class RevocationCache implements RevocationDataService {
+    private static final Logger LOG = LogManager.getLogger(RevocationCache.class);
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final byte TYPE_OCSP = 0;
+    private static final byte TYPE_CRL = 1;
+
+    /**
+     * Fetches the revocation data of a certificate, e.g. via an OCSP request or a CRL download
+     */
+    @FunctionalInterface
+    public interface Source {
+        /**
+         * @param certificate the certificate to be checked
+         * @param issuer the issuer of the certificate - for the root certificate, the certificate itself
+         * @return the DER encoded OCSP responses or CRLs - an empty list if none are available
+         */
+        List<byte[]> fetch(X509Certificate certificate, X509Certificate issuer) throws IOException, GeneralSecurityException;
+    }
+
+    private static final class Entry {
+        private final List<byte[]> encoded;
+        private final List<Object> parsed;
+        private final long expiresAt;
+
+        Entry(List<byte[]> encoded, List<Object> parsed, long expiresAt) {
+            this.encoded = encoded;
+            this.parsed = parsed;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /** the lock of a key, so a key is only fetched by one thread at a time */
+    private static final class Holder {
+        private volatile Entry entry;
+    }
+
+    private final Map<Object,Holder> cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private Source ocspSource;
+    private Source crlSource;
+    private long defaultValidityMillis = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * @param maxEntries the maximum number of cached OCSP and CRL entries
+     */
+    public RevocationCache(int maxEntries) {
+        cache = new LinkedHashMap<Object,Holder>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object,Holder> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param ocspSource the source of the OCSP responses or {@code null}, if no OCSP responses are embedded
+     */
+    public void setOcspSource(Source ocspSource) {
+        this.ocspSource = ocspSource;
+    }
+
+    /**
+     * @param crlSource the source of the CRLs or {@code null}, if no CRLs are embedded
+     */
+    public void setCrlSource(Source crlSource) {
+        this.crlSource = crlSource;
+    }
+
+    /**
+     * @param defaultValidityMillis the cache duration of responses without nextUpdate, counted from their thisUpdate
+     */
+    public void setDefaultValidity(long defaultValidityMillis) {
+        this.defaultValidityMillis = defaultValidityMillis;
+    }
+
+    @Override
+    public RevocationData getRevocationData(List<X509Certificate> certificateChain) {
+        RevocationData rd = new RevocationData();
+        for (int i=0; i<certificateChain.size(); i++) {
+            X509Certificate cert = certificateChain.get(i);
+            X509Certificate issuer = certificateChain.get(Math.min(i+1, certificateChain.size()-1));
+            try {
+                getOcspEntry(cert, issuer).encoded.forEach(rd::addOCSP);
+                getCrlEntry(cert, issuer).encoded.forEach(rd::addCRL);
+            } catch (IOException | GeneralSecurityException | OCSPException | OperatorCreationException e) {
+                throw new IllegalStateException("can't fetch revocation data of " + cert.getSubjectX500Principal(), e);
+            }
+        }
+        return rd;
+    }
+
+    /**
+     * @return the parsed and still valid OCSP responses of the certificate - the source is asked on a cache miss
+     */
+    public List<BasicOCSPResp> getOcspResponses(X509Certificate cert, X509Certificate issuer)
+        throws IOException, GeneralSecurityException, OCSPException, OperatorCreationException {
+        return typed(getOcspEntry(cert, issuer).parsed, BasicOCSPResp.class);
+    }
+
+    /**
+     * @return the parsed and still valid CRLs of the certificate issuer - the source is asked on a cache miss
+     */
+    public List<X509CRL> getCRLs(X509Certificate cert, X509Certificate issuer)
+        throws IOException, GeneralSecurityException, OCSPException, OperatorCreationException {
+        return typed(getCrlEntry(cert, issuer).parsed, X509CRL.class);
+    }
+
+    /**
+     * @return the number of lookups, which were answered by the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups, which needed to ask the source
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private Entry getOcspEntry(X509Certificate cert, X509Certificate issuer)
+        throws IOException, GeneralSecurityException, OCSPException, OperatorCreationException {
+        if (ocspSource == null) {
+            return new Entry(Collections.emptyList(), Collections.emptyList(), 0);
+        }
+        CertificateID certId = new CertificateID(
+            new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1),
+            new X509CertificateHolder(issuer.getEncoded()), cert.getSerialNumber());
+        Holder holder = getHolder(certId);
+        synchronized (holder) {
+            Entry entry = validEntry(holder);
+            if (entry == null) {
+                entry = parseOcsp(ocspSource.fetch(cert, issuer));
+                holder.entry = entry;
+            }
+            return entry;
+        }
+    }
+
+    private Entry getCrlEntry(X509Certificate cert, X509Certificate issuer)
+        throws IOException, GeneralSecurityException {
+        if (crlSource == null) {
+            return new Entry(Collections.emptyList(), Collections.emptyList(), 0);
+        }
+        Holder holder = getHolder(cert.getIssuerX500Principal());
+        synchronized (holder) {
+            Entry entry = validEntry(holder);
+            if (entry == null) {
+                entry = parseCrl(crlSource.fetch(cert, issuer));
+                holder.entry = entry;
+            }
+            return entry;
+        }
+    }
+
+    private Holder getHolder(Object key) {
+        synchronized (cache) {
+            return cache.computeIfAbsent(key, k -> new Holder());
+        }
+    }
+
+    private Entry validEntry(Holder holder) {
+        Entry entry = holder.entry;
+        if (entry != null && System.currentTimeMillis() < entry.expiresAt) {
+            hits.increment();
+            return entry;
+        }
+        misses.increment();
+        return null;
+    }
+
+    private Entry parseOcsp(List<byte[]> encoded) throws IOException, OCSPException {
+        List<Object> parsed = new ArrayList<>(encoded.size());
+        long expiresAt = Long.MAX_VALUE;
+        for (byte[] ocsp : encoded) {
+            Object respObj = new OCSPResp(ocsp).getResponseObject();
+            if (!(respObj instanceof BasicOCSPResp)) {
+                throw new OCSPException("unsupported OCSP response");
+            }
+            BasicOCSPResp basicResp = (BasicOCSPResp)respObj;
+            parsed.add(basicResp);
+            for (SingleResp sr : basicResp.getResponses()) {
+                expiresAt = Math.min(expiresAt, expiry(sr.getThisUpdate(), sr.getNextUpdate()));
+            }
+        }
+        return newEntry(encoded, parsed, expiresAt);
+    }
+
+    private Entry parseCrl(List<byte[]> encoded) throws GeneralSecurityException {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        List<Object> parsed = new ArrayList<>(encoded.size());
+        long expiresAt = Long.MAX_VALUE;
+        for (byte[] crlBytes : encoded) {
+            X509CRL crl = (X509CRL)cf.generateCRL(new ByteArrayInputStream(crlBytes));
+            parsed.add(crl);
+            expiresAt = Math.min(expiresAt, expiry(crl.getThisUpdate(), crl.getNextUpdate()));
+        }
+        return newEntry(encoded, parsed, expiresAt);
+    }
+
+    private Entry newEntry(List<byte[]> encoded, List<Object> parsed, long expiresAt) {
+        // empty or outdated results are kept for the default validity, so the source isn't asked for each signature
+        long now = System.currentTimeMillis();
+        if (expiresAt <= now || expiresAt == Long.MAX_VALUE) {
+            LOG.atDebug().log("no current revocation data available - caching for {}ms", defaultValidityMillis);
+            expiresAt = now + defaultValidityMillis;
+        }
+        return new Entry(encoded, parsed, expiresAt);
+    }
+
+    private long expiry(Date thisUpdate, Date nextUpdate) {
+        return (nextUpdate != null) ? nextUpdate.getTime() : thisUpdate.getTime() + defaultValidityMillis;
+    }
+
+    private static <T> List<T> typed(List<Object> parsed, Class<T> type) {
+        List<T> list = new ArrayList<>(parsed.size());
+        parsed.forEach(o -> list.add(type.cast(o)));
+        return list;
+    }
+
+    /**
+     * Saves the still valid entries to a snapshot file
+     */
+    public void save(File snapshotFile) throws IOException {
+        List<Map.Entry<Object,Entry>> entries = new ArrayList<>();
+        synchronized (cache) {
+            cache.forEach((k, h) -> {
+                Entry e = h.entry;
+                if (e != null) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(k, e));
+                }
+            });
+        }
+
+        long now = System.currentTimeMillis();
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshotFile)))) {
+            dos.writeInt(SNAPSHOT_VERSION);
+            for (Map.Entry<Object,Entry> me : entries) {
+                Entry e = me.getValue();
+                if (e.expiresAt <= now) {
+                    continue;
+                }
+                boolean isOcsp = me.getKey() instanceof CertificateID;
+                dos.writeByte(isOcsp ? TYPE_OCSP : TYPE_CRL);
+                writeBytes(dos, isOcsp
+                    ? ((CertificateID)me.getKey()).toASN1Primitive().getEncoded()
+                    : ((X500Principal)me.getKey()).getEncoded());
+                dos.writeLong(e.expiresAt);
+                dos.writeInt(e.encoded.size());
+                for (byte[] b : e.encoded) {
+                    writeBytes(dos, b);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the still valid entries of a snapshot file, which was created by {@link #save(File)}.
+     * A missing snapshot file is ignored.
+     */
+    public void load(File snapshotFile) throws IOException, GeneralSecurityException, OCSPException {
+        if (!snapshotFile.exists()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            if (dis.readInt() != SNAPSHOT_VERSION) {
+                LOG.atWarn().log("ignoring revocation cache snapshot {} of an unknown version", snapshotFile);
+                return;
+            }
+            int type;
+            while ((type = dis.read()) != -1) {
+                byte[] keyBytes = readBytes(dis);
+                long expiresAt = dis.readLong();
+                int count = dis.readInt();
+                List<byte[]> encoded = new ArrayList<>(count);
+                for (int i=0; i<count; i++) {
+                    encoded.add(readBytes(dis));
+                }
+                if (expiresAt <= now) {
+                    continue;
+                }
+                Object key = (type == TYPE_OCSP)
+                    ? new CertificateID(CertID.getInstance(keyBytes))
+                    : new X500Principal(keyBytes);
+                Entry parsed = (type == TYPE_OCSP) ? parseOcsp(encoded) : parseCrl(encoded);
+                getHolder(key).entry = new Entry(encoded, parsed.parsed, expiresAt);
+            }
+        }
+    }
+
+    private static void writeBytes(DataOutputStream dos, byte[] b) throws IOException {
+        dos.writeInt(b.length);
+        dos.write(b);
+    }
+
+    private static byte[] readBytes(DataInputStream dis) throws IOException {
+        byte[] b = new byte[dis.readInt()];
+        dis.readFully(b);
+        return b;
+    }
+}
@@ -0,0 +1,220 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
+import org.apache.poi.poifs.crypt.dsig.services.TimeStampHttpClient;
+import org.apache.poi.poifs.crypt.dsig.services.TimeStampSimpleHttpClient;
+
+/**
+ * TimeStampHttpClient based on a {@link HttpClient}, which is shared by all instances.
+ *
+ * The default {@link TimeStampSimpleHttpClient} opens a {@link HttpURLConnection} per request. The shared client
+ * keeps the connections to the TSP alive and multiplexes the requests of concurrent signatures, while the
+ * instances only hold the per-config state, i.e. the headers and the expected content type.
+ *
+ * Proxies and reckless https connections are properties of the shared client - use a custom client for those.
+ */
+public class SharedTimeStampHttpClient implements TimeStampHttpClient {
+    private static final Logger LOG = LogManager.getLogger(SharedTimeStampHttpClient.class);
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(20);
+
+    private static final class DefaultClient {
+        // redirects are followed once and only if enabled by the config, so they are handled manually
+        static final HttpClient INSTANCE = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .connectTimeout(TIMEOUT)
+            .build();
+    }
+
+    private static final class Response implements TimeStampHttpClientResponse {
+        private final int responseCode;
+        private final byte[] responseBytes;
+
+        Response(int responseCode, byte[] responseBytes) {
+            this.responseCode = responseCode;
+            this.responseBytes = responseBytes;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public byte[] getResponseBytes() {
+            return responseBytes;
+        }
+    }
+
+    private final HttpClient client;
+    private final Map<String,String> header = new HashMap<>();
+    private String contentTypeOut;
+    private boolean followRedirects;
+
+    /**
+     * Creates an instance based on the default shared client
+     */
+    public SharedTimeStampHttpClient() {
+        this(DefaultClient.INSTANCE);
+    }
+
+    /**
+     * @param client the shared client - its redirect policy should be {@link HttpClient.Redirect#NEVER}
+     */
+    public SharedTimeStampHttpClient(HttpClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public void init(SignatureConfig config) {
+        if (config.getProxyUrl() != null && !config.getProxyUrl().isEmpty()) {
+            throw new IllegalStateException("the proxy needs to be configured on the shared HttpClient");
+        }
+        header.clear();
+        header.put("User-Agent", config.getUserAgent());
+        contentTypeOut = null;
+        setBasicAuthentication(config.getTspUser(), config.getTspPass());
+    }
+
+    @Override
+    public void setContentTypeIn(String contentType) {
+        header.put("Content-Type", contentType);
+    }
+
+    @Override
+    public void setContentTypeOut(String contentType) {
+        contentTypeOut = contentType;
+    }
+
+    @Override
+    public void setBasicAuthentication(String username, String password) {
+        if (username == null || username.isEmpty() || password == null || password.isEmpty()) {
+            header.remove("Authorization");
+        } else {
+            String userPassword = username + ":" + password;
+            header.put("Authorization", "Basic " + Base64.getEncoder().encodeToString(userPassword.getBytes(StandardCharsets.ISO_8859_1)));
+        }
+    }
+
+    @Override
+    public TimeStampHttpClientResponse post(String url, byte[] payload) throws IOException {
+        return await(postAsync(url, payload));
+    }
+
+    @Override
+    public TimeStampHttpClientResponse get(String url) throws IOException {
+        return await(getAsync(url));
+    }
+
+    /**
+     * Sends a request without blocking the calling thread
+     */
+    public CompletableFuture<TimeStampHttpClientResponse> postAsync(String url, byte[] payload) {
+        return send(url, HttpRequest.BodyPublishers.ofByteArray(payload), "POST", followRedirects);
+    }
+
+    /**
+     * Sends a request without blocking the calling thread
+     */
+    public CompletableFuture<TimeStampHttpClientResponse> getAsync(String url) {
+        return send(url, HttpRequest.BodyPublishers.noBody(), "GET", followRedirects);
+    }
+
+    @Override
+    public boolean isIgnoreHttpsCertificates() {
+        return false;
+    }
+
+    /**
+     * Reckless connections aren't supported, as the trust is configured on the shared client
+     */
+    @Override
+    public void setIgnoreHttpsCertificates(boolean ignoreHttpsCertificates) {
+        if (ignoreHttpsCertificates) {
+            throw new UnsupportedOperationException("the trust manager needs to be configured on the shared HttpClient");
+        }
+    }
+
+    @Override
+    public boolean isFollowRedirects() {
+        return followRedirects;
+    }
+
+    @Override
+    public void setFollowRedirects(boolean followRedirects) {
+        this.followRedirects = followRedirects;
+    }
+
+    private CompletableFuture<TimeStampHttpClientResponse> send(String url, HttpRequest.BodyPublisher body, String method, boolean followRedirect) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+            .timeout(TIMEOUT)
+            .method(method, body);
+        header.forEach(builder::header);
+        // the response is validated against the expected content type of the request time
+        String expectedType = contentTypeOut;
+
+        return client.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofByteArray()).thenCompose(resp -> {
+            switch (resp.statusCode()) {
+                case HttpURLConnection.HTTP_MOVED_TEMP:
+                case HttpURLConnection.HTTP_MOVED_PERM:
+                case HttpURLConnection.HTTP_SEE_OTHER: {
+                    String newUrl = resp.headers().firstValue("Location").orElse(null);
+                    if (newUrl != null && followRedirect) {
+                        LOG.atWarn().log("Received redirect: {} -> {}", url, newUrl);
+                        return send(newUrl, body, method, false);
+                    }
+                    LOG.atWarn().log("Redirect ignored - giving up: {} -> {}", url, newUrl);
+                    return CompletableFuture.completedFuture(new Response(resp.statusCode(), null));
+                }
+                case HttpURLConnection.HTTP_OK: {
+                    String contentType = resp.headers().firstValue("Content-Type").orElse(null);
+                    if (expectedType != null && !expectedType.equals(contentType)) {
+                        throw new CompletionException(new IOException(
+                            "Content-Type mismatch - expected `" + expectedType + "', received '" + contentType + "'"));
+                    }
+                    byte[] bytes = resp.body();
+                    if (bytes.length > TimeStampSimpleHttpClient.getMaxTimestampResponseSize()) {
+                        throw new CompletionException(new IOException("Time-stamp response exceeds the maximum size: " + bytes.length));
+                    }
+                    return CompletableFuture.completedFuture(new Response(resp.statusCode(), bytes));
+                }
+                default: {
+                    String message = "Error contacting TSP server " + url + ", had status code " + resp.statusCode();
+                    LOG.atError().log(message);
+                    throw new CompletionException(new IOException(message));
+                }
+            }
+        });
+    }
+
+    private static TimeStampHttpClientResponse await(CompletableFuture<TimeStampHttpClientResponse> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("TSP request was interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException)cause : new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package de.kiwiwings.poi.dsig;
+
+import java.lang.ref.WeakReference;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.spec.DigestMethodParameterSpec;
+
+/**
+ * Cache for the DigestMethods of a {@link XMLSignatureFactory}, which are otherwise created
+ * for each reference of each signature.
+ *
+ * DigestMethods are immutable and shared between threads. Transforms and CanonicalizationMethods aren't cached,
+ * as xmlsec binds them to the document and element of their first marshalling.
+ * The parameter specs are compared by {@link Object#equals(Object)}, i.e. usually by identity.
+ *
+ * The caches are weakly keyed by their factory and only hold a weak reference to it, so a cache and its
+ * digest methods are released after the factory, e.g. when the SignatureInfo of the factory is discarded.
+ */
+public final class SignatureAlgorithmCache {
+    private static final Map<XMLSignatureFactory,SignatureAlgorithmCache> CACHES =
+        Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+
+    // weak, as a strong reference of the value would keep the key of the weak map alive
+    private final WeakReference<XMLSignatureFactory> sigFac;
+    private final Map<List<Object>,DigestMethod> digestMethods = new ConcurrentHashMap<>();
+
+    private SignatureAlgorithmCache(XMLSignatureFactory sigFac) {
+        this.sigFac = new WeakReference<>(sigFac);
+    }
+
+    /**
+     * @return the cache for the given factory - the cache is released after the factory
+     */
+    public static SignatureAlgorithmCache forFactory(XMLSignatureFactory sigFac) {
+        return CACHES.computeIfAbsent(sigFac, SignatureAlgorithmCache::new);
+    }
+
+    public DigestMethod getDigestMethod(String digestMethodUri, DigestMethodParameterSpec paramSpec)
+        throws GeneralSecurityException {
+        List<Object> key = Arrays.asList(digestMethodUri, paramSpec);
+        DigestMethod dm = digestMethods.get(key);
+        if (dm != null) {
+            HITS.increment();
+            return dm;
+        }
+        MISSES.increment();
+        dm = factory().newDigestMethod(digestMethodUri, paramSpec);
+        DigestMethod prev = digestMethods.putIfAbsent(key, dm);
+        return prev != null ? prev : dm;
+    }
+
+    private XMLSignatureFactory factory() {
+        XMLSignatureFactory fac = sigFac.get();
+        if (fac == null) {
+            // the caller holds the factory, when it looks up its cache
+            throw new IllegalStateException("signature factory was already released");
+        }
+        return fac;
+    }
+
+    /**
+     * @return the number of digest method lookups, which were served by the caches of all factories
+     */
+    public static long getHits() {
+        return HITS.sum();
+    }
+
+    /**
+     * @return the number of digest method lookups, which needed to create a new digest method
+     */
+    public static long getMisses() {
+        return MISSES.sum();
+    }
+
+    /**
+     * @return the ratio of hits to all lookups, or 0 if nothing was looked up yet
+     */
+    public static double getHitRate() {
+        long hits = HITS.sum();
+        long all = hits + MISSES.sum();
+        return all == 0 ? 0 : hits / (double)all;
+    }
+
+    public static void resetStatistics() {
+        HITS.reset();
+        MISSES.reset();
+    }
+}
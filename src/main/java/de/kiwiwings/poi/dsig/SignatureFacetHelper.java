@@ -23,6 +23,7 @@ final class SignatureFacetHelper {
     static Transform newTransform(SignatureInfo signatureInfo, String canonicalizationMethod, TransformParameterSpec paramSpec)
         throws XMLSignatureException {
         try {
+            // not cached, as xmlsec binds a transform to the document of its first marshalling
             return signatureInfo.getSignatureFactory().newTransform(canonicalizationMethod, paramSpec);
         } catch (GeneralSecurityException e) {
             throw new XMLSignatureException("unknown canonicalization method: "+canonicalizationMethod, e);
@@ -35,6 +36,19 @@ final class SignatureFacetHelper {
         , List<Transform> transforms
         , String type)
         throws XMLSignatureException {
+        return newReference(signatureInfo, uri, transforms, type, null);
+    }
+
+    /**
+     * @param digestValue the precomputed digest value or {@code null}, if the reference needs to be digested
+     */
+    static Reference newReference(
+        SignatureInfo signatureInfo
+        , String uri
+        , List<Transform> transforms
+        , String type
+        , byte[] digestValue)
+        throws XMLSignatureException {
         // the references appear in the package signature or the package object
         // so we can use the default digest algorithm
         SignatureConfig signatureConfig = signatureInfo.getSignatureConfig();
@@ -42,11 +56,17 @@ final class SignatureFacetHelper {
         XMLSignatureFactory sigFac = signatureInfo.getSignatureFactory();
         DigestMethod digestMethod;
         try {
-            digestMethod = sigFac.newDigestMethod(digestMethodUri, null);
+            digestMethod = getCache(signatureInfo).getDigestMethod(digestMethodUri, null);
         } catch (GeneralSecurityException e) {
             throw new XMLSignatureException("unknown digest method uri: "+digestMethodUri, e);
         }
 
-        return sigFac.newReference(uri, digestMethod, transforms, type, null);
+        return (digestValue == null)
+            ? sigFac.newReference(uri, digestMethod, transforms, type, null)
+            : sigFac.newReference(uri, digestMethod, transforms, type, null, digestValue);
+    }
+
+    private static SignatureAlgorithmCache getCache(SignatureInfo signatureInfo) {
+        return SignatureAlgorithmCache.forFactory(signatureInfo.getSignatureFactory());
     }
 }
@@ -0,0 +1,286 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import javax.security.auth.DestroyFailedException;
+import javax.xml.crypto.dsig.TransformException;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+
+import org.apache.jcp.xml.dsig.internal.dom.DOMSignedInfo;
+import org.apache.jcp.xml.dsig.internal.dom.DOMSubTreeData;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.EncryptedDocumentException;
+import org.apache.poi.poifs.crypt.CryptoFunctions;
+import org.apache.poi.poifs.crypt.HashAlgorithm;
+import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
+import org.apache.poi.poifs.crypt.dsig.SignatureInfo;
+import org.apache.xml.security.utils.XMLUtils;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.DigestInfo;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.RuntimeOperatorException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Signing key, which is unlocked once and then used for many signatures.
+ *
+ * The keystore entry is decrypted when the session is opened. The signature engines are initialized with the key
+ * on first use and then pooled, so the hot path {@link #sign(byte[])} only encodes and signs the digest - without
+ * a keystore lookup or a provider resolution. The pool isn't bound to threads, as the stages of the
+ * {@link AsyncSigner} change threads.
+ *
+ * {@link #close()} drops the engines and destroys the key, if the key implementation supports it. The software
+ * keys of the JDK don't implement {@link javax.security.auth.Destroyable#destroy()}, so the key is only released
+ * for the garbage collection.
+ *
+ * EC keys can only be used for {@link #sign(byte[])} and the content signers, e.g. for OCSP responses or time stamps.
+ * The XML signatures of the documents need a RSA key.
+ */
+public class SignerSession implements Closeable {
+    private static final Logger LOG = LogManager.getLogger(SignerSession.class);
+    // taken from org.apache.xml.security.utils.Base64
+    private static final int BASE64DEFAULTLENGTH = 76;
+
+    private final List<X509Certificate> chain;
+    private final HashAlgorithm digestAlgo;
+    private final boolean rsa;
+    // the DER encoded DigestInfo without the digest value
+    private final byte[] digestInfoPrefix;
+    private final Deque<Signature> engines = new ConcurrentLinkedDeque<>();
+    private volatile PrivateKey key;
+
+    /**
+     * Unlocks a key of the keystore
+     */
+    public SignerSession(DummyKeystore keystore, String keyAlias, String keyPass, HashAlgorithm digestAlgo) throws GeneralSecurityException {
+        this(keystore.getKeyPair(keyAlias, keyPass), digestAlgo);
+    }
+
+    /**
+     * @param keyPair an unlocked key - the session takes the ownership of the key
+     * @param digestAlgo the digest algorithm of the signatures
+     */
+    public SignerSession(DummyKeystore.KeyCertPair keyPair, HashAlgorithm digestAlgo) {
+        this.key = keyPair.getKey();
+        this.chain = keyPair.getX509Chain();
+        this.digestAlgo = digestAlgo;
+        this.rsa = "RSA".equals(key.getAlgorithm());
+        if (!rsa && !"EC".equals(key.getAlgorithm())) {
+            throw new IllegalArgumentException("key algorithm isn't supported: " + key.getAlgorithm());
+        }
+        // ECDSA signs the plain digest
+        this.digestInfoPrefix = rsa ? digestInfoPrefix(digestAlgo) : new byte[0];
+    }
+
+    public List<X509Certificate> getX509Chain() {
+        return chain;
+    }
+
+    public HashAlgorithm getDigestAlgo() {
+        return digestAlgo;
+    }
+
+    /**
+     * @return the JCA name of the signature algorithm, e.g. SHA256withRSA
+     */
+    public String getSignatureAlgorithm() {
+        return digestAlgo.ecmaString + (rsa ? "withRSA" : "withECDSA");
+    }
+
+    /**
+     * Sets the key, the certificate chain and the digest algorithm of the config
+     */
+    public void configure(SignatureConfig config) {
+        config.setKey(getKey());
+        config.setSigningCertificateChain(chain);
+        config.setDigestAlgo(digestAlgo);
+    }
+
+    /**
+     * Signs a digest of the session digest algorithm
+     *
+     * @return the PKCS#1 v1.5 signature for RSA keys or the DER encoded signature for EC keys
+     */
+    public byte[] sign(byte[] digest) throws GeneralSecurityException {
+        if (digest.length != digestAlgo.hashSize) {
+            throw new IllegalArgumentException("digest size " + digest.length + " doesn't match " + digestAlgo);
+        }
+        Signature engine = engines.pollFirst();
+        if (engine == null) {
+            engine = Signature.getInstance(rsa ? "NONEwithRSA" : "NONEwithECDSA");
+            engine.initSign(getKey());
+        }
+        // sign() resets the engine to the initialized state, so it can be reused
+        engine.update(digestInfoPrefix);
+        engine.update(digest);
+        byte[] signature = engine.sign();
+        if (key != null) {
+            engines.offerFirst(engine);
+        }
+        return signature;
+    }
+
+    /**
+     * Canonicalizes the SignedInfo and signs it like {@link SignatureInfo#signDigest(DOMSignContext, DOMSignedInfo)}
+     *
+     * @return the base64 encoded signature value
+     * @throws EncryptedDocumentException if the session key isn't a RSA key or xmlsec would wrap the digest values
+     */
+    public String signDigest(DOMSignContext xmlSignContext, DOMSignedInfo signedInfo) {
+        requireXmlSignatureKey();
+        // same check as SignatureInfo.signDigest
+        if (digestAlgo.hashSize*4/3 > BASE64DEFAULTLENGTH && !XMLUtils.ignoreLineBreaks()) {
+            throw new EncryptedDocumentException("The hash size of the chosen hash algorithm ("+digestAlgo+" = "+digestAlgo.hashSize+" bytes), "+
+                "will motivate XmlSec to add linebreaks to the generated digest, which results in an invalid signature (... at least "+
+                "for Office) - please persuade it otherwise by adding '-Dorg.apache.xml.security.ignoreLineBreaks=true' to the JVM "+
+                "system properties.");
+        }
+        try {
+            return Base64.getEncoder().encodeToString(sign(digestSignedInfo(xmlSignContext, signedInfo, digestAlgo)));
+        } catch (GeneralSecurityException e) {
+            throw new EncryptedDocumentException(e);
+        }
+    }
+
+    /**
+     * Signs the SignedInfo of a signature, which was prepared with the given config
+     *
+     * @return the base64 encoded signature value
+     * @throws EncryptedDocumentException if the digest algorithm of the config isn't the one of the session -
+     *  the SignatureMethod would name another algorithm than the one of the signature value
+     */
+    public String signDigest(SignatureConfig config, DOMSignContext xmlSignContext, DOMSignedInfo signedInfo) {
+        if (config.getDigestAlgo() != digestAlgo) {
+            throw new EncryptedDocumentException("the digest algorithm of the signature config (" + config.getDigestAlgo()
+                + ") doesn't match the one of the session (" + digestAlgo + ") - the config needs to be set up with configure()");
+        }
+        return signDigest(xmlSignContext, signedInfo);
+    }
+
+    /**
+     * @return the digest of the canonicalized SignedInfo, i.e. the input of the signature operation
+     */
+    static byte[] digestSignedInfo(DOMSignContext xmlSignContext, DOMSignedInfo signedInfo, HashAlgorithm digestAlgo) {
+        Document document = (Document)xmlSignContext.getParent();
+        Element el = (Element)document.getElementsByTagNameNS(XMLSignature.XMLNS, "SignedInfo").item(0);
+        MessageDigest md = CryptoFunctions.getMessageDigest(digestAlgo);
+        try (OutputStream os = new DigestOutputStream(OutputStream.nullOutputStream(), md)) {
+            signedInfo.getCanonicalizationMethod().transform(new DOMSubTreeData(el, true), xmlSignContext, os);
+            return md.digest();
+        } catch (IOException | TransformException e) {
+            throw new EncryptedDocumentException(e);
+        }
+    }
+
+    /**
+     * @return the DER encoded PKCS#1 DigestInfo of the digest algorithm without the digest value
+     */
+    static byte[] digestInfoPrefix(HashAlgorithm digestAlgo) {
+        try {
+            AlgorithmIdentifier algId = new AlgorithmIdentifier(new ASN1ObjectIdentifier(digestAlgo.rsaOid), DERNull.INSTANCE);
+            byte[] digestInfo = new DigestInfo(algId, new byte[digestAlgo.hashSize]).getEncoded(ASN1Encoding.DER);
+            return Arrays.copyOf(digestInfo, digestInfo.length - digestAlgo.hashSize);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return a SignatureInfo, which signs with the session
+     * @throws EncryptedDocumentException if the session key isn't a RSA key
+     */
+    public SignatureInfo newSignatureInfo() {
+        requireXmlSignatureKey();
+        return new SignatureInfo() {
+            @Override
+            public String signDigest(DOMSignContext xmlSignContext, DOMSignedInfo signedInfo) {
+                return SignerSession.this.signDigest(getSignatureConfig(), xmlSignContext, signedInfo);
+            }
+        };
+    }
+
+    /**
+     * POI writes a rsa-sha* SignatureMethod for all keys and XML-DSig expects the raw r||s value of an ECDSA
+     * signature instead of the DER encoding of {@link #sign(byte[])}, so EC keys would create invalid signatures
+     */
+    private void requireXmlSignatureKey() {
+        if (!rsa) {
+            throw new EncryptedDocumentException("XML signatures are only supported for RSA keys, not for " + getSignatureAlgorithm());
+        }
+    }
+
+    /**
+     * @return a BouncyCastle content signer, e.g. for OCSP responses or CMS structures. The signer hashes the
+     *  content and signs the digest with a pooled engine. An instance must not be shared between threads.
+     */
+    public ContentSigner newContentSigner() {
+        AlgorithmIdentifier algId = new DefaultSignatureAlgorithmIdentifierFinder().find(getSignatureAlgorithm());
+        MessageDigest md = CryptoFunctions.getMessageDigest(digestAlgo);
+        DigestOutputStream os = new DigestOutputStream(OutputStream.nullOutputStream(), md);
+        return new ContentSigner() {
+            @Override
+            public AlgorithmIdentifier getAlgorithmIdentifier() {
+                return algId;
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                return os;
+            }
+
+            @Override
+            public byte[] getSignature() {
+                try {
+                    return sign(md.digest());
+                } catch (GeneralSecurityException e) {
+                    throw new RuntimeOperatorException("can't sign content", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Drops the initialized engines and destroys the key
+     */
+    @Override
+    public void close() {
+        PrivateKey k = key;
+        key = null;
+        engines.clear();
+        if (k != null && !k.isDestroyed()) {
+            try {
+                k.destroy();
+            } catch (DestroyFailedException e) {
+                LOG.atDebug().log("key of type {} can't be destroyed - it's released for the garbage collection", k.getClass().getName());
+            }
+        }
+    }
+
+    private PrivateKey getKey() {
+        PrivateKey k = key;
+        if (k == null) {
+            throw new IllegalStateException("signer session is closed");
+        }
+        return k;
+    }
+}
@@ -0,0 +1,117 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process {@link SigningListener}, which aggregates the phase timings per phase and facet.
+ *
+ * The durations are collected in power-of-two buckets, so the reported percentiles are upper bounds
+ * with a precision of factor 2. This is enough to tell apart a 2ms digest phase from a 200ms TSP request.
+ */
+public class SigningHistogramReporter implements SigningListener {
+    private static final int BUCKETS = 64;
+    private static final double NANOS_PER_MS = 1_000_000d;
+
+    private static final class Histogram {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private void add(long durationNanos, long bytes, long allocatedBytes) {
+            long nanos = Math.max(durationNanos, 0);
+            count.increment();
+            sumNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            this.bytes.add(bytes);
+            if (allocatedBytes > 0) {
+                this.allocatedBytes.add(allocatedBytes);
+            }
+            // bucket i contains the durations in [2^(i-1), 2^i)
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+        }
+
+        /** @return the upper bound of the bucket, which contains the given percentile */
+        private long percentile(double p) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long)Math.ceil(total * p);
+            long seen = 0;
+            for (int i=0; i<BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return i == 0 ? 0 : Math.min(1L << i, maxNanos.get());
+                }
+            }
+            return maxNanos.get();
+        }
+    }
+
+    private final Map<String,Histogram> histograms = new ConcurrentHashMap<>();
+
+    @Override
+    public void phaseCompleted(SigningPhase phase, String facet, long durationNanos, long bytes, long allocatedBytes) {
+        histograms.computeIfAbsent(key(phase, facet), k -> new Histogram()).add(durationNanos, bytes, allocatedBytes);
+    }
+
+    /**
+     * @return the number of recorded phases for the given phase and facet ({@code null} for non-facet phases)
+     */
+    public long getCount(SigningPhase phase, String facet) {
+        Histogram h = histograms.get(key(phase, facet));
+        return h == null ? 0 : h.count.sum();
+    }
+
+    /**
+     * @return the upper bound in nanoseconds of the given percentile (0..1) or 0 if nothing was recorded
+     */
+    public long getPercentileNanos(SigningPhase phase, String facet, double percentile) {
+        Histogram h = histograms.get(key(phase, facet));
+        return h == null ? 0 : h.percentile(percentile);
+    }
+
+    public void reset() {
+        histograms.clear();
+    }
+
+    /**
+     * Prints a table with count, mean, p50, p99, max, digested bytes and allocated bytes per phase
+     */
+    public void report(PrintStream out) {
+        out.printf(Locale.ROOT, "%-50s %8s %10s %10s %10s %10s %12s %12s%n",
+            "phase", "count", "mean[ms]", "p50[ms]", "p99[ms]", "max[ms]", "bytes/op", "alloc/op");
+        Map<String,Histogram> sorted = new TreeMap<>(histograms);
+        for (Map.Entry<String,Histogram> me : sorted.entrySet()) {
+            Histogram h = me.getValue();
+            long count = h.count.sum();
+            if (count == 0) {
+                continue;
+            }
+            out.printf(Locale.ROOT, "%-50s %8d %10.2f %10.2f %10.2f %10.2f %12d %12d%n",
+                me.getKey().substring(2), count,
+                h.sumNanos.sum() / NANOS_PER_MS / count,
+                h.percentile(0.5) / NANOS_PER_MS,
+                h.percentile(0.99) / NANOS_PER_MS,
+                h.maxNanos.get() / NANOS_PER_MS,
+                h.bytes.sum() / count,
+                h.allocatedBytes.sum() / count);
+        }
+    }
+
+    private static String key(SigningPhase phase, String facet) {
+        // the ordinal prefix keeps the report in phase order
+        char ord = (char)('A' + phase.ordinal());
+        return facet == null ? ord + " " + phase.name() : ord + " " + phase.name() + " " + facet;
+    }
+}
@@ -0,0 +1,298 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.xml.crypto.Data;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.OctetStreamData;
+import javax.xml.crypto.URIReference;
+import javax.xml.crypto.URIReferenceException;
+import javax.xml.crypto.XMLCryptoContext;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.XMLObject;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+
+import org.apache.jcp.xml.dsig.internal.dom.DOMSignedInfo;
+import org.apache.poi.ooxml.util.DocumentHelper;
+import org.apache.poi.poifs.crypt.dsig.OOXMLURIDereferencer;
+import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
+import org.apache.poi.poifs.crypt.dsig.SignatureInfo;
+import org.apache.poi.poifs.crypt.dsig.facets.SignatureFacet;
+import org.apache.poi.poifs.crypt.dsig.services.RevocationData;
+import org.apache.poi.poifs.crypt.dsig.services.RevocationDataService;
+import org.apache.poi.poifs.crypt.dsig.services.TimeStampService;
+import org.w3c.dom.Document;
+
+/**
+ * Records the wall time, the digested package bytes and the allocated bytes of the signing phases.
+ *
+ * Usage: call {@link #instrument(SignatureConfig)} once on the config and sign with the SignatureInfo
+ * of {@link #newSignatureInfo()} instead of a plain {@link SignatureInfo}.
+ * The facets, the time-stamp service and the revocation data service of the config are replaced by
+ * timing wrappers. The allocated bytes are taken from the thread MXBean, if the JVM supports it.
+ */
+public class SigningInstrumentation {
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN = getThreadBean();
+
+    /** facet time and allocations of the current preSign/postSign call, to subtract them from the enclosing phase */
+    private static final class FacetTotals {
+        private long nanos;
+        private long allocatedBytes;
+        private long digestedBytes;
+
+        private void reset() {
+            nanos = 0;
+            allocatedBytes = 0;
+        }
+    }
+
+    private final SigningListener listener;
+    private final ThreadLocal<FacetTotals> facetTotals = ThreadLocal.withInitial(FacetTotals::new);
+
+    public SigningInstrumentation(SigningListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Wraps the facets, the time-stamp service and the revocation data service of the config.
+     * Calling this more than once on the same config has no further effect.
+     */
+    public void instrument(SignatureConfig signatureConfig) {
+        List<SignatureFacet> facets = signatureConfig.getSignatureFacets().stream()
+            .map(f -> f instanceof InstrumentedFacet ? f : new InstrumentedFacet(f))
+            .collect(Collectors.toList());
+        signatureConfig.setSignatureFacets(facets);
+
+        TimeStampService tsp = signatureConfig.getTspService();
+        if (tsp != null && !(tsp instanceof InstrumentedTimeStampService)) {
+            signatureConfig.setTspService(new InstrumentedTimeStampService(tsp));
+        }
+
+        RevocationDataService rds = signatureConfig.getRevocationDataService();
+        if (rds != null && !(rds instanceof InstrumentedRevocationDataService)) {
+            signatureConfig.setRevocationDataService(new InstrumentedRevocationDataService(rds));
+        }
+    }
+
+    /**
+     * @return a SignatureInfo which reports the non-facet phases and counts the digested package bytes
+     */
+    public SignatureInfo newSignatureInfo() {
+        return new InstrumentedSignatureInfo(null);
+    }
+
+    /**
+     * @return a SignatureInfo which reports the phases and signs with the unlocked key of the session
+     */
+    public SignatureInfo newSignatureInfo(SignerSession session) {
+        return new InstrumentedSignatureInfo(session);
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean;
+            }
+        }
+        return null;
+    }
+
+    private static long allocatedBytes() {
+        return THREAD_BEAN == null ? -1 : THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long allocatedSince(long startAlloc) {
+        return startAlloc == -1 ? -1 : allocatedBytes() - startAlloc;
+    }
+
+    private void report(SigningPhase phase, String facet, long startNanos, long bytes, long startAlloc) {
+        listener.phaseCompleted(phase, facet, System.nanoTime() - startNanos, bytes, allocatedSince(startAlloc));
+    }
+
+    private class InstrumentedSignatureInfo extends SignatureInfo {
+        private final SignerSession session;
+
+        InstrumentedSignatureInfo(SignerSession session) {
+            this.session = session;
+            setUriDereferencer(new CountingURIDereferencer());
+        }
+
+        @Override
+        public void confirmSignature() throws XMLSignatureException, MarshalException {
+            long startNanos = System.nanoTime();
+            long startAlloc = allocatedBytes();
+            FacetTotals totals = facetTotals.get();
+            totals.digestedBytes = 0;
+
+            initXmlProvider();
+            final Document document = DocumentHelper.createDocument();
+            final DOMSignContext xmlSignContext = createXMLSignContext(document);
+
+            final DOMSignedInfo signedInfo = preSign(xmlSignContext);
+            final String signatureValue = timedSignDigest(xmlSignContext, signedInfo);
+            postSign(xmlSignContext, signatureValue);
+
+            report(SigningPhase.TOTAL, null, startNanos, totals.digestedBytes, startAlloc);
+        }
+
+        @Override
+        public DOMSignedInfo preSign(DOMSignContext xmlSignContext) throws XMLSignatureException, MarshalException {
+            FacetTotals totals = facetTotals.get();
+            totals.reset();
+            long startNanos = System.nanoTime();
+            long startAlloc = allocatedBytes();
+            long startBytes = totals.digestedBytes;
+            DOMSignedInfo signedInfo = super.preSign(xmlSignContext);
+            listener.phaseCompleted(SigningPhase.DIGEST_REFERENCES, null,
+                System.nanoTime() - startNanos - totals.nanos, totals.digestedBytes - startBytes,
+                startAlloc == -1 ? -1 : allocatedSince(startAlloc) - totals.allocatedBytes);
+            return signedInfo;
+        }
+
+        @Override
+        public String signDigest(DOMSignContext xmlSignContext, DOMSignedInfo signedInfo) {
+            return (session != null) ? session.signDigest(getSignatureConfig(), xmlSignContext, signedInfo) : super.signDigest(xmlSignContext, signedInfo);
+        }
+
+        private String timedSignDigest(DOMSignContext xmlSignContext, DOMSignedInfo signedInfo) {
+            long startNanos = System.nanoTime();
+            long startAlloc = allocatedBytes();
+            String signatureValue = signDigest(xmlSignContext, signedInfo);
+            report(SigningPhase.SIGN_DIGEST, null, startNanos, 0, startAlloc);
+            return signatureValue;
+        }
+
+        @Override
+        public void postSign(DOMSignContext xmlSignContext, String signatureValue) throws MarshalException {
+            FacetTotals totals = facetTotals.get();
+            totals.reset();
+            long startNanos = System.nanoTime();
+            long startAlloc = allocatedBytes();
+            super.postSign(xmlSignContext, signatureValue);
+            listener.phaseCompleted(SigningPhase.WRITE_SIGNATURE, null,
+                System.nanoTime() - startNanos - totals.nanos, 0,
+                startAlloc == -1 ? -1 : allocatedSince(startAlloc) - totals.allocatedBytes);
+        }
+    }
+
+    private class InstrumentedFacet implements SignatureFacet {
+        private final SignatureFacet delegate;
+        private final String name;
+
+        InstrumentedFacet(SignatureFacet delegate) {
+            this.delegate = delegate;
+            this.name = delegate.getClass().getSimpleName();
+        }
+
+        @Override
+        public void preSign(SignatureInfo signatureInfo, Document document, List<Reference> references, List<XMLObject> objects)
+            throws XMLSignatureException {
+            long startNanos = System.nanoTime();
+            long startAlloc = allocatedBytes();
+            try {
+                delegate.preSign(signatureInfo, document, references, objects);
+            } finally {
+                facetCompleted(SigningPhase.FACET_PRE_SIGN, startNanos, startAlloc);
+            }
+        }
+
+        @Override
+        public void postSign(SignatureInfo signatureInfo, Document document) throws MarshalException {
+            long startNanos = System.nanoTime();
+            long startAlloc = allocatedBytes();
+            try {
+                delegate.postSign(signatureInfo, document);
+            } finally {
+                facetCompleted(SigningPhase.FACET_POST_SIGN, startNanos, startAlloc);
+            }
+        }
+
+        private void facetCompleted(SigningPhase phase, long startNanos, long startAlloc) {
+            long nanos = System.nanoTime() - startNanos;
+            long alloc = allocatedSince(startAlloc);
+            FacetTotals totals = facetTotals.get();
+            totals.nanos += nanos;
+            totals.allocatedBytes += Math.max(alloc, 0);
+            listener.phaseCompleted(phase, name, nanos, 0, alloc);
+        }
+    }
+
+    private class InstrumentedTimeStampService implements TimeStampService {
+        private final TimeStampService delegate;
+
+        InstrumentedTimeStampService(TimeStampService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public byte[] timeStamp(SignatureInfo signatureInfo, byte[] data, RevocationData revocationData) throws Exception {
+            long startNanos = System.nanoTime();
+            long startAlloc = allocatedBytes();
+            try {
+                return delegate.timeStamp(signatureInfo, data, revocationData);
+            } finally {
+                report(SigningPhase.TIMESTAMP, null, startNanos, 0, startAlloc);
+            }
+        }
+    }
+
+    private class InstrumentedRevocationDataService implements RevocationDataService {
+        private final RevocationDataService delegate;
+
+        InstrumentedRevocationDataService(RevocationDataService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public RevocationData getRevocationData(List<java.security.cert.X509Certificate> certificateChain) {
+            long startNanos = System.nanoTime();
+            long startAlloc = allocatedBytes();
+            try {
+                return delegate.getRevocationData(certificateChain);
+            } finally {
+                report(SigningPhase.REVOCATION_DATA, null, startNanos, 0, startAlloc);
+            }
+        }
+    }
+
+    /** counts the bytes of the dereferenced package parts */
+    private class CountingURIDereferencer extends OOXMLURIDereferencer {
+        @Override
+        public Data dereference(URIReference uriReference, XMLCryptoContext context) throws URIReferenceException {
+            Data data = super.dereference(uriReference, context);
+            if (!(data instanceof OctetStreamData)) {
+                return data;
+            }
+            OctetStreamData osd = (OctetStreamData)data;
+            FacetTotals totals = facetTotals.get();
+            InputStream counting = new FilterInputStream(osd.getOctetStream()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        totals.digestedBytes++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        totals.digestedBytes += n;
+                    }
+                    return n;
+                }
+            };
+            return new OctetStreamData(counting, osd.getURI(), osd.getMimeType());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package de.kiwiwings.poi.dsig;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * {@link SigningListener}, which emits a {@code de.kiwiwings.poi.SigningPhase} event per phase
+ * to a running flight recording, e.g. started with {@code -XX:StartFlightRecording}.
+ * If the event type isn't enabled, the listener returns without allocating an event.
+ */
+public class SigningJfrExporter implements SigningListener {
+    @Name("de.kiwiwings.poi.SigningPhase")
+    @Label("Signing Phase")
+    @Category({"POI", "Signature"})
+    @Description("A completed phase of an OOXML signature")
+    @StackTrace(false)
+    static class SigningPhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Facet")
+        String facet;
+
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long durationNanos;
+
+        @Label("Digested Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Allocated Bytes")
+        @DataAmount
+        long allocatedBytes;
+    }
+
+    private static final EventType EVENT_TYPE = EventType.getEventType(SigningPhaseEvent.class);
+
+    @Override
+    public void phaseCompleted(SigningPhase phase, String facet, long durationNanos, long bytes, long allocatedBytes) {
+        if (!EVENT_TYPE.isEnabled()) {
+            return;
+        }
+        SigningPhaseEvent event = new SigningPhaseEvent();
+        event.phase = phase.name();
+        event.facet = facet;
+        event.durationNanos = durationNanos;
+        event.bytes = bytes;
+        event.allocatedBytes = allocatedBytes;
+        event.commit();
+    }
+}
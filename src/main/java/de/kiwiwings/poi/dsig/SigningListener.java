@@ -0,0 +1,27 @@
+package de.kiwiwings.poi.dsig;
+
+/**
+ * Listener for the phase timings of {@link SigningInstrumentation}.
+ * The listener is called on the signing threads, so implementations need to be thread-safe.
+ */
+public interface SigningListener {
+    /**
+     * @param phase the completed phase
+     * @param facet the simple class name of the facet for the facet phases, otherwise {@code null}
+     * @param durationNanos the wall time of the phase
+     * @param bytes the package bytes read for digesting in the {@link SigningPhase#DIGEST_REFERENCES}
+     *  and {@link SigningPhase#TOTAL} phases, otherwise 0
+     * @param allocatedBytes the bytes allocated by the signing thread or -1 if the JVM can't tell
+     */
+    void phaseCompleted(SigningPhase phase, String facet, long durationNanos, long bytes, long allocatedBytes);
+
+    /**
+     * @return a listener, which first notifies this and then the other listener
+     */
+    default SigningListener andThen(SigningListener other) {
+        return (phase, facet, durationNanos, bytes, allocatedBytes) -> {
+            phaseCompleted(phase, facet, durationNanos, bytes, allocatedBytes);
+            other.phaseCompleted(phase, facet, durationNanos, bytes, allocatedBytes);
+        };
+    }
+}
@@ -0,0 +1,23 @@
+package de.kiwiwings.poi.dsig;
+
+/**
+ * The phases of a signature, which are reported by {@link SigningInstrumentation}
+ */
+public enum SigningPhase {
+    /** preSign of a single signature facet */
+    FACET_PRE_SIGN,
+    /** digesting and canonicalizing the package parts and objects, i.e. preSign without the facets */
+    DIGEST_REFERENCES,
+    /** canonicalizing the SignedInfo and calculating the signature value, e.g. the RSA operation */
+    SIGN_DIGEST,
+    /** postSign of a single signature facet - includes the nested timestamp and revocation phases */
+    FACET_POST_SIGN,
+    /** a request to the time-stamp service */
+    TIMESTAMP,
+    /** a lookup of the revocation data service */
+    REVOCATION_DATA,
+    /** writing the signature part, i.e. postSign without the facets */
+    WRITE_SIGNATURE,
+    /** the whole confirmSignature call */
+    TOTAL
+}
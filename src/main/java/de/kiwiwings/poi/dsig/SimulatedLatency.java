@@ -0,0 +1,31 @@
+package de.kiwiwings.poi.dsig;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Artificial latency of the local responders, which is chosen uniformly between min and max
+ */
+final class SimulatedLatency {
+    private volatile long minMillis;
+    private volatile long maxMillis;
+
+    void set(long minMillis, long maxMillis) {
+        this.minMillis = minMillis;
+        this.maxMillis = Math.max(minMillis, maxMillis);
+    }
+
+    /**
+     * Blocks the calling thread for the next latency
+     */
+    void pause() {
+        long min = minMillis, max = maxMillis;
+        long latency = (max > min) ? ThreadLocalRandom.current().nextLong(min, max + 1) : min;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package de.kiwiwings.poi.dsig;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -8,16 +7,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.GeneralSecurityException;
-import java.security.KeyStoreException;
-import java.security.cert.CRLException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509CRL;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.List;
-import java.util.stream.Stream;
 import java.util.zip.ZipFile;
 
 import javax.xml.crypto.MarshalException;
@@ -34,8 +25,6 @@ import org.apache.poi.poifs.crypt.dsig.facets.KeyInfoSignatureFacet;
 import org.apache.poi.poifs.crypt.dsig.facets.OOXMLSignatureFacet;
 import org.apache.poi.poifs.crypt.dsig.facets.XAdESSignatureFacet;
 import org.apache.poi.poifs.crypt.dsig.facets.XAdESXLSignatureFacet;
-import org.apache.poi.poifs.crypt.dsig.services.RevocationData;
-import org.apache.poi.poifs.crypt.dsig.services.RevocationDataService;
 import org.apache.poi.util.IOUtils;
 import org.apache.poi.util.LocaleUtil;
 import org.apache.poi.xwpf.usermodel.XWPFDocument;
@@ -56,66 +45,37 @@ public class TestSigCR {
             doc.write(bos);
         }
 
-        ZipFile certStore = new ZipFile("src/main/resources/CertificadosDePruebaSHA2-PersonaFisica.zip");
         String STORE_PASS = "storePass";
         String KEY_PASS = "keyPass";
         DummyKeystore ks = new DummyKeystore(STORE_PASS);
 
-        certStore.stream().filter(ze -> ze.getName().contains("Cadena de Certificados")).forEach(ze -> {
-            try (InputStream is = certStore.getInputStream(ze)) {
-                ks.importX509(is);
-            } catch (CertificateException | KeyStoreException | IOException ignored) {
-            }
-        });
-
         String extCert = "Certificados/V_lidos/Extranjeros/NARCISO CASCANTE PRUEBA (FIRMA).pfx";
         String natCert = "Certificados/V_lidos/Nacionales/ANA ROJAS PRUEBA (FIRMA).pfx";
-        try (InputStream is = certStore.getInputStream(certStore.getEntry(natCert))) {
-            ks.importKeystore(is, "123", KEY_PASS, (a) -> "123");
-        }
-
-        KeyCertPair kcp = ks.getKeyPair(0, KEY_PASS);
 
         SignatureConfig cfg = new SignatureConfig();
-        CertificateFactory cf = CertificateFactory.getInstance("X.509");
-
-        certStore.stream().filter(ze -> ze.getName().contains("Lista de Revocacion")).forEach(ze -> {
-            try (InputStream is = certStore.getInputStream(ze)) {
-                byte[] crlBytes = IOUtils.toByteArray(is);
-                X509CRL x509CRL = (X509CRL)cf.generateCRL(new ByteArrayInputStream(crlBytes));
-                cfg.addCRL(null, x509CRL.getIssuerX500Principal().getName(), crlBytes);
-            } catch (CRLException | IOException ignored) {
-            }
-        });
-
-        certStore.stream().filter(ze -> ze.getName().contains("Cadena de Certificados") || ze.getName().contains("tspcert")).forEach(ze -> {
-            try (InputStream is = certStore.getInputStream(ze)) {
-                cfg.addCachedCertificate(null, IOUtils.toByteArray(is));
-            } catch (IOException | KeyStoreException | CertificateException ignored) {
-            }
-        });
-
-        Calendar cal = LocaleUtil.getLocaleCalendar(LocaleUtil.TIMEZONE_UTC);
-        final OCSPResp ocspResp = ks.createOcspResp(kcp, cal.getTimeInMillis());
-        final byte[] ocspRespBytes = ocspResp.getEncoded();
+        IndexedRevocationDataService rds = new IndexedRevocationDataService();
 
-        RevocationDataService rds = (certificateChain) -> {
-            RevocationData rd = new RevocationData();
-            rd.addOCSP(ocspRespBytes);
+        // the chain, the CRLs and the signing key are read in one pass over the bundle
+        TrustBundleLoader loader = new TrustBundleLoader();
+        loader.setKeystorePassword(name -> natCert.equals(name) ? "123" : null, KEY_PASS);
+        loader.setRevocationDataService(rds);
+        TrustBundleLoader.Report report = loader.load(new File("src/main/resources/CertificadosDePruebaSHA2-PersonaFisica.zip"), ks, cfg);
+        report.print(System.out);
 
-            certificateChain.stream().skip(1)
-                .map(c -> c.getSubjectX500Principal().getName())
-                .flatMap(n -> cfg.getCrlEntries().stream().filter(ce -> n.equals(ce.getCertCN())))
-                .map(SignatureConfig.CRLEntry::getCrlBytes)
-                .forEach(rd::addCRL);
+        KeyCertPair kcp = ks.getKeyPair(0, KEY_PASS);
 
-            return rd;
-        };
+        Calendar cal = LocaleUtil.getLocaleCalendar(LocaleUtil.TIMEZONE_UTC);
+        final OCSPResp ocspResp = ks.createOcspResp(kcp, cal.getTimeInMillis());
+        rds.addOCSP(kcp.getX509(), ocspResp.getEncoded());
 
+        // the revocation data is reused by further signatures until its nextUpdate
+        RevocationCache revocationCache = new RevocationCache(1000);
+        revocationCache.setOcspSource((cert, issuer) -> rds.getOCSPs(cert));
+        revocationCache.setCrlSource((cert, issuer) -> rds.getCRLs(cert));
 
-        cfg.setKey(kcp.getKey());
+        SignerSession session = new SignerSession(kcp, cfg.getDigestAlgo());
+        session.configure(cfg);
         cfg.setXadesCanonicalizationMethod(CanonicalizationMethod.INCLUSIVE);
-        cfg.setSigningCertificateChain(kcp.getX509Chain());
         cfg.setIncludeEntireCertificateChain(false);
         cfg.setSignatureFacets(Arrays.asList(
             new OOXMLSignatureFacet(),
@@ -125,15 +85,16 @@ public class TestSigCR {
         ));
         cfg.setTspUrl("http://tsa.sinpe.fi.cr/tsahttp/");
         cfg.setTspOldProtocol(false);
-        cfg.setRevocationDataService(rds);
+        cfg.setRevocationDataService(revocationCache);
         cfg.setAllowCRLDownload(true);
         cfg.getTspHttpClient().setFollowRedirects(true);
         cfg.getTspHttpClient().setIgnoreHttpsCertificates(true);
 
 
-        try (OPCPackage pkg = OPCPackage.open(bos.toInputStream());
+        try (SignerSession ss = session;
+             OPCPackage pkg = OPCPackage.open(bos.toInputStream());
              FileOutputStream fos = new FileOutputStream("test.docx")) {
-            SignatureInfo si = new SignatureInfo();
+            SignatureInfo si = ss.newSignatureInfo();
             si.setSignatureConfig(cfg);
             si.setOpcPackage(pkg);
             si.confirmSignature();
@@ -0,0 +1,178 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import de.kiwiwings.poi.dsig.DummyKeystore.KeyCertPair;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
+import org.apache.poi.poifs.crypt.dsig.SignatureInfo;
+import org.apache.poi.poifs.crypt.dsig.facets.KeyInfoSignatureFacet;
+import org.apache.poi.poifs.crypt.dsig.facets.SignatureFacet;
+import org.apache.poi.poifs.crypt.dsig.facets.XAdESXLSignatureFacet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Load test of the XAdES-X-L signing against a {@link LocalTimeStampAuthority} and a {@link LocalOcspResponder}.
+ *
+ * Each XAdES-X-L signature requests two timestamps (XAdES-T and XAdES-X). The harness reports the throughput
+ * and the latency percentiles of the timestamp phase and of the whole signature.
+ * With a merkle window, the timestamps of concurrent signatures are aggregated by a {@link MerkleTimeStampService}.
+ */
+public class TimeStampLoadTest {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].startsWith("-")) {
+            System.err.println("Usage: TimeStampLoadTest [documents] [workers] [tsaLatencyMillis] [tsaConcurrency] [ocspLatencyMillis] [merkleWindowMillis] [batch|async]");
+            return;
+        }
+        int documents = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        long tsaLatency = args.length > 2 ? Long.parseLong(args[2]) : 20;
+        int tsaConcurrency = args.length > 3 ? Integer.parseInt(args[3]) : workers;
+        long ocspLatency = args.length > 4 ? Long.parseLong(args[4]) : 20;
+        // 0 = a time-stamp token per signature
+        long merkleWindow = args.length > 5 ? Long.parseLong(args[5]) : 0;
+        boolean async = args.length > 6 && "async".equals(args[6]);
+
+        final String keyPass = "keyPass";
+        DummyKeystore ks = new DummyKeystore("storePass");
+        KeyCertPair signer = ks.addEntry("signer", keyPass, 2048, 12);
+        KeyCertPair tsaKey = ks.addTsaEntry("tsa", keyPass, 2048, 12);
+
+        Path sourceDir = Files.createTempDirectory("tsp-load-src");
+        Path targetDir = Files.createTempDirectory("tsp-load-dst");
+
+        try (LocalTimeStampAuthority tsa = new LocalTimeStampAuthority(tsaKey, tsaConcurrency);
+             LocalOcspResponder ocsp = new LocalOcspResponder(ks, signer);
+             MerkleTimeStampService merkleTsp = new MerkleTimeStampService(Math.max(1, merkleWindow), workers)) {
+            tsa.setLatency(tsaLatency, tsaLatency);
+            tsa.start(0);
+            ocsp.setLatency(ocspLatency, ocspLatency);
+            ocsp.start(0);
+
+            // the revocation data is shared, the timestamps are requested per signature
+            RevocationCache revocationCache = new RevocationCache(100);
+            revocationCache.setOcspSource(new HttpOcspSource(ocsp.getUrl()));
+
+            SigningHistogramReporter histogram = new SigningHistogramReporter();
+            SigningInstrumentation instrumentation = new SigningInstrumentation(histogram);
+            String tspUrl = tsa.getUrl().toString();
+
+            Supplier<SignatureConfig> configFactory = () -> {
+                SignatureConfig signatureConfig = new SignatureConfig();
+                signatureConfig.setKey(signer.getKey());
+                signatureConfig.setSigningCertificateChain(signer.getX509Chain());
+                List<SignatureFacet> facets = new ArrayList<>(Arrays.asList(
+                    new OOXML2SignatureFacet(),
+                    new KeyInfoSignatureFacet(),
+                    new XAdES2SignatureFacet(),
+                    new XAdESXLSignatureFacet()
+                ));
+                if (merkleWindow > 0) {
+                    signatureConfig.setTspService(merkleTsp);
+                    facets.add(new MerkleProofSignatureFacet(merkleTsp));
+                }
+                signatureConfig.setSignatureFacets(facets);
+                signatureConfig.setTspUrl(tspUrl);
+                signatureConfig.setTspOldProtocol(false);
+                signatureConfig.setRevocationDataService(revocationCache);
+                instrumentation.instrument(signatureConfig);
+                return signatureConfig;
+            };
+
+            createDocuments(sourceDir, documents);
+
+            AtomicInteger failed = new AtomicInteger();
+            AtomicReference<Path> firstSigned = new AtomicReference<>();
+            long start = System.nanoTime();
+            if (async) {
+                // the cpu threads only digest and save, the time-stamps of further packages are in flight meanwhile
+                try (AsyncSigner as = new AsyncSigner(configFactory, instrumentation::newSignatureInfo, workers, workers * 4);
+                     Stream<Path> sources = Files.list(sourceDir)) {
+                    CompletableFuture<?>[] futures = sources.map(src -> as.sign(src, targetDir.resolve(src.getFileName()))
+                        .whenComplete((target, e) -> {
+                            if (e == null) {
+                                firstSigned.compareAndSet(null, target);
+                            } else if (failed.getAndIncrement() == 0) {
+                                e.printStackTrace();
+                            }
+                        })).toArray(CompletableFuture[]::new);
+                    CompletableFuture.allOf(futures).exceptionally(e -> null).join();
+                }
+            } else {
+                try (BatchSigner bs = new BatchSigner(configFactory, workers, workers * 2)) {
+                    bs.setSignatureInfoFactory(instrumentation::newSignatureInfo);
+                    bs.signDirectory(sourceDir, targetDir, r -> {
+                        if (r.isSuccess()) {
+                            firstSigned.compareAndSet(null, r.getTarget());
+                        } else if (failed.getAndIncrement() == 0) {
+                            r.getError().printStackTrace();
+                        }
+                    });
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf(Locale.ROOT, "%d documents, %d workers (%s), TSA latency %dms / concurrency %d, OCSP latency %dms, merkle window %dms%n",
+                documents, workers, async ? "async" : "batch", tsaLatency, tsaConcurrency, ocspLatency, merkleWindow);
+            System.out.printf(Locale.ROOT, "%.1f signatures/s, %.1f timestamps/s, %d failed, %d OCSP requests%n",
+                (documents - failed.get()) / seconds, tsa.getRequestCount() / seconds, failed.get(), ocsp.getRequestCount());
+            System.out.printf(Locale.ROOT, "timestamp p50 %.1fms, p99 %.1fms - signature p50 %.1fms, p99 %.1fms%n",
+                millis(histogram.getPercentileNanos(SigningPhase.TIMESTAMP, null, 0.5)),
+                millis(histogram.getPercentileNanos(SigningPhase.TIMESTAMP, null, 0.99)),
+                millis(histogram.getPercentileNanos(SigningPhase.TOTAL, null, 0.5)),
+                millis(histogram.getPercentileNanos(SigningPhase.TOTAL, null, 0.99)));
+            histogram.report(System.out);
+
+            if (firstSigned.get() != null) {
+                System.out.println("signature of " + firstSigned.get().getFileName() + " is valid: " + verify(firstSigned.get()));
+            }
+        } finally {
+            deleteDirectory(sourceDir);
+            deleteDirectory(targetDir);
+        }
+    }
+
+    private static void createDocuments(Path dir, int count) throws IOException {
+        for (int i=0; i<count; i++) {
+            try (XSSFWorkbook wb = new XSSFWorkbook();
+                 OutputStream os = Files.newOutputStream(dir.resolve(String.format(Locale.ROOT, "doc%05d.xlsx", i)))) {
+                wb.createSheet().createRow(0).createCell(0).setCellValue("document " + i);
+                wb.write(os);
+            }
+        }
+    }
+
+    private static boolean verify(Path signed) throws Exception {
+        try (OPCPackage pkg = OPCPackage.open(signed.toFile(), PackageAccess.READ)) {
+            SignatureInfo si = new SignatureInfo();
+            si.setSignatureConfig(new SignatureConfig());
+            si.setOpcPackage(pkg);
+            return si.verifySignature();
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double)TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
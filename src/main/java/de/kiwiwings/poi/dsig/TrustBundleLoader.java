@@ -0,0 +1,339 @@
+package de.kiwiwings.poi.dsig;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyStoreException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import de.kiwiwings.poi.dsig.DummyKeystore.KeyCertPair;
+import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
+import org.apache.poi.util.IOUtils;
+
+/**
+ * Loads the certificates, CRLs and keystores of a ZIP trust bundle, like the test certificates of
+ * the Costa Rican central bank, in one pass.
+ *
+ * The archive is read once - a file is memory-mapped - and the entries are classified by their extension.
+ * The entries are parsed in parallel on a fork-join pool, afterwards the results are added in archive order
+ * to the {@link DummyKeystore} and the {@link SignatureConfig}:
+ * <ul>
+ * <li>certificates (.crt, .cer, .der, .pem) are keystore certificate entries and cached certificates</li>
+ * <li>CRLs (.crl) are added to the config and to the optional revocation data service</li>
+ * <li>keystores (.pfx, .p12) are imported, if the password function returns a password for the entry</li>
+ * </ul>
+ * Entries, which can't be parsed, are skipped and listed in the report.
+ */
+public class TrustBundleLoader {
+    public enum EntryType {
+        CERTIFICATE, CRL, KEYSTORE, OTHER
+    }
+
+    public static final class Failure {
+        private final String name;
+        private final EntryType type;
+        private final Exception error;
+
+        Failure(String name, EntryType type, Exception error) {
+            this.name = name;
+            this.type = type;
+            this.error = error;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public EntryType getType() {
+            return type;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    public static final class Report {
+        private final Map<EntryType,Integer> loaded = new EnumMap<>(EntryType.class);
+        private final List<Failure> failures = new ArrayList<>();
+        private long readNanos, parseNanos, applyNanos;
+
+        /**
+         * @return the number of successfully loaded entries of the type
+         */
+        public int getCount(EntryType type) {
+            return loaded.getOrDefault(type, 0);
+        }
+
+        public List<Failure> getFailures() {
+            return Collections.unmodifiableList(failures);
+        }
+
+        public long getReadNanos() {
+            return readNanos;
+        }
+
+        public long getParseNanos() {
+            return parseNanos;
+        }
+
+        public long getApplyNanos() {
+            return applyNanos;
+        }
+
+        public void print(PrintStream out) {
+            out.printf(Locale.ROOT, "%d certificates, %d CRLs, %d keystores, %d skipped, %d failed%n",
+                getCount(EntryType.CERTIFICATE), getCount(EntryType.CRL), getCount(EntryType.KEYSTORE),
+                getCount(EntryType.OTHER), failures.size());
+            out.printf(Locale.ROOT, "read %.1fms, parse %.1fms, apply %.1fms%n",
+                readNanos / 1e6, parseNanos / 1e6, applyNanos / 1e6);
+            for (Failure f : failures) {
+                out.println("failed " + f.getType() + " " + f.getName() + ": " + f.getError());
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final EntryType type;
+        private final byte[] data;
+        private Object parsed;
+        private Exception error;
+
+        Entry(String name, EntryType type, byte[] data) {
+            this.name = name;
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private Function<String,String> keystorePassword = name -> null;
+    private String keyPass;
+    private IndexedRevocationDataService revocationDataService;
+
+    public TrustBundleLoader() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool the pool, which parses the entries
+     */
+    public TrustBundleLoader(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @param keystorePassword returns the store and key password of a keystore entry or {@code null} to skip it
+     * @param keyPass the password of the imported keys in the target keystore
+     */
+    public void setKeystorePassword(Function<String,String> keystorePassword, String keyPass) {
+        this.keystorePassword = keystorePassword;
+        this.keyPass = keyPass;
+    }
+
+    /**
+     * @param revocationDataService the service, which additionally receives the CRLs
+     */
+    public void setRevocationDataService(IndexedRevocationDataService revocationDataService) {
+        this.revocationDataService = revocationDataService;
+    }
+
+    public Report load(File bundle, DummyKeystore keystore, SignatureConfig config) throws IOException {
+        Report report = new Report();
+        long start = System.nanoTime();
+        List<Entry> entries;
+        try (FileChannel fc = FileChannel.open(bundle.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            entries = readEntries(new ByteBufferInputStream(buf));
+        }
+        report.readNanos = System.nanoTime() - start;
+        return process(entries, keystore, config, report);
+    }
+
+    public Report load(InputStream bundle, DummyKeystore keystore, SignatureConfig config) throws IOException {
+        Report report = new Report();
+        long start = System.nanoTime();
+        List<Entry> entries = readEntries(bundle);
+        report.readNanos = System.nanoTime() - start;
+        return process(entries, keystore, config, report);
+    }
+
+    static EntryType classify(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        String ext = lower.substring(lower.lastIndexOf('.') + 1);
+        switch (ext) {
+            case "crt":
+            case "cer":
+            case "der":
+            case "pem":
+                return EntryType.CERTIFICATE;
+            case "crl":
+                return EntryType.CRL;
+            case "pfx":
+            case "p12":
+                return EntryType.KEYSTORE;
+            default:
+                return EntryType.OTHER;
+        }
+    }
+
+    private List<Entry> readEntries(InputStream is) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        ZipInputStream zis = new ZipInputStream(is);
+        for (ZipEntry ze; (ze = zis.getNextEntry()) != null; ) {
+            if (ze.isDirectory()) {
+                continue;
+            }
+            EntryType type = classify(ze.getName());
+            if (type == EntryType.KEYSTORE && keystorePassword.apply(ze.getName()) == null) {
+                type = EntryType.OTHER;
+            }
+            // the content of the other entries isn't needed
+            byte[] data = (type == EntryType.OTHER) ? null : IOUtils.toByteArray(zis);
+            entries.add(new Entry(ze.getName(), type, data));
+        }
+        return entries;
+    }
+
+    private Report process(List<Entry> entries, DummyKeystore keystore, SignatureConfig config, Report report) throws IOException {
+        long start = System.nanoTime();
+        try {
+            pool.submit(() -> entries.parallelStream().forEach(this::parse)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("trust bundle parsing was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        report.parseNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        // the keystores are imported together, so their chains are completed with the bundle certificates
+        List<Map<String,KeyCertPair>> keyPairs = new ArrayList<>();
+        for (Entry e : entries) {
+            if (e.error == null) {
+                try {
+                    apply(e, keystore, config, keyPairs);
+                } catch (Exception ex) {
+                    e.error = ex;
+                }
+            }
+            if (e.error == null) {
+                report.loaded.merge(e.type, 1, Integer::sum);
+            } else {
+                report.failures.add(new Failure(e.name, e.type, e.error));
+            }
+        }
+        if (!keyPairs.isEmpty()) {
+            try {
+                keystore.importKeyPairs(keyPairs, keyPass);
+            } catch (KeyStoreException ex) {
+                List<Entry> keystores = entries.stream().filter(e -> e.type == EntryType.KEYSTORE && e.error == null).collect(Collectors.toList());
+                keystores.forEach(e -> report.failures.add(new Failure(e.name, e.type, ex)));
+                report.loaded.remove(EntryType.KEYSTORE);
+            }
+        }
+        report.applyNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private void parse(Entry e) {
+        try {
+            switch (e.type) {
+                case CERTIFICATE:
+                    // the factories aren't thread-safe
+                    e.parsed = CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(e.data));
+                    break;
+                case CRL:
+                    e.parsed = CertificateFactory.getInstance("X.509").generateCRL(new ByteArrayInputStream(e.data));
+                    break;
+                case KEYSTORE: {
+                    String pass = keystorePassword.apply(e.name);
+                    e.parsed = new DummyKeystore(new ByteArrayInputStream(e.data), pass).getKeyPairs(a -> pass);
+                    break;
+                }
+                default:
+                    break;
+            }
+        } catch (Exception ex) {
+            e.error = ex;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void apply(Entry e, DummyKeystore keystore, SignatureConfig config, List<Map<String,KeyCertPair>> keyPairs) throws KeyStoreException {
+        switch (e.type) {
+            case CERTIFICATE: {
+                X509Certificate x509 = (X509Certificate)e.parsed;
+                keystore.importX509(x509);
+                config.addCachedCertificate(null, x509);
+                break;
+            }
+            case CRL: {
+                X509CRL crl = (X509CRL)e.parsed;
+                config.addCRL(null, crl.getIssuerX500Principal().getName(), e.data);
+                if (revocationDataService != null) {
+                    revocationDataService.addCRL(crl, e.data);
+                }
+                break;
+            }
+            case KEYSTORE:
+                keyPairs.add((Map<String,KeyCertPair>)e.parsed);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? (buf.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
@@ -28,14 +28,19 @@ import static de.kiwiwings.poi.dsig.SignatureFacetHelper.newReference;
 import static de.kiwiwings.poi.dsig.SignatureFacetHelper.newTransform;
 import static java.util.Collections.singletonList;
 
+import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.TimeZone;
 
 import javax.xml.XMLConstants;
@@ -50,6 +55,7 @@ import javax.xml.namespace.QName;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.poi.ooxml.util.DocumentHelper;
 import org.apache.poi.poifs.crypt.CryptoFunctions;
 import org.apache.poi.poifs.crypt.HashAlgorithm;
 import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
@@ -98,8 +104,73 @@ public class XAdES2SignatureFacet implements SignatureFacet {
 
     private static final String XADES_TYPE = "http://uri.etsi.org/01903#SignedProperties";
 
+    private static final String XADES_NS = "http://uri.etsi.org/01903/v1.3.2#";
+
+    private static class QualifyingPropertiesTemplate {
+        private final List<Object> key;
+        private final Element root;
+
+        QualifyingPropertiesTemplate(List<Object> key, Element root) {
+            this.key = key;
+            this.root = root;
+        }
+    }
+
+    /** the certificates are compared by identity, as equals would need to encode them */
+    private static final class CertIDKey {
+        private final X509Certificate certificate;
+        private final HashAlgorithm digestAlgo;
+        private final boolean issuerNameNoReverseOrder;
+
+        CertIDKey(X509Certificate certificate, HashAlgorithm digestAlgo, boolean issuerNameNoReverseOrder) {
+            this.certificate = certificate;
+            this.digestAlgo = digestAlgo;
+            this.issuerNameNoReverseOrder = issuerNameNoReverseOrder;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CertIDKey)) {
+                return false;
+            }
+            CertIDKey other = (CertIDKey)o;
+            return certificate == other.certificate
+                && digestAlgo == other.digestAlgo
+                && issuerNameNoReverseOrder == other.issuerNameNoReverseOrder;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(certificate), digestAlgo, issuerNameNoReverseOrder);
+        }
+    }
+
+    private static final class CertIDValue {
+        private final String issuerName;
+        private final BigInteger serialNumber;
+        private final byte[] digestValue;
+
+        CertIDValue(String issuerName, BigInteger serialNumber, byte[] digestValue) {
+            this.issuerName = issuerName;
+            this.serialNumber = serialNumber;
+            this.digestValue = digestValue;
+        }
+    }
+
+    private static final int CERT_ID_CACHE_SIZE = 64;
+
+    private static final Map<CertIDKey, CertIDValue> CERT_ID_CACHE = Collections.synchronizedMap(
+        new LinkedHashMap<CertIDKey, CertIDValue>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CertIDKey, CertIDValue> eldest) {
+                return size() > CERT_ID_CACHE_SIZE;
+            }
+        });
+
     private final Map<String, String> dataObjectFormatMimeTypes = new HashMap<>();
 
+    private volatile QualifyingPropertiesTemplate template;
+
 
     @Override
     public void preSign(
@@ -112,6 +183,62 @@ public class XAdES2SignatureFacet implements SignatureFacet {
 
         SignatureConfig signatureConfig = signatureInfo.getSignatureConfig();
 
+        // the QualifyingProperties only differ by the signing time, the ids and the description,
+        // so a cached template is copied and patched instead of building it via XmlBeans each time
+        QualifyingPropertiesTemplate template = getTemplate(signatureInfo);
+        Element qualDocEl;
+        synchronized (template) {
+            qualDocEl = (Element)document.importNode(template.root, true);
+        }
+
+        qualDocEl.setAttribute("Target", "#" + signatureConfig.getPackageSignatureId());
+
+        Element signedProperties = getXadesElement(qualDocEl, "SignedProperties");
+        signedProperties.setAttribute("Id", signatureConfig.getXadesSignatureId());
+        signedProperties.setIdAttribute("Id", true);
+
+        getXadesElement(qualDocEl, "SigningTime").setTextContent(signatureConfig.formatExecutionTime());
+
+        String sigDesc = signatureConfig.getSignatureDescription();
+        if (sigDesc != null) {
+            getXadesElement(qualDocEl, "CommitmentTypeQualifier").setTextContent(sigDesc);
+        }
+
+        // add XAdES ds:Object
+        objects.add(addXadesObject(signatureInfo, qualDocEl));
+
+        // add XAdES ds:Reference
+        references.add(addXadesReference(signatureInfo));
+    }
+
+    private QualifyingPropertiesTemplate getTemplate(SignatureInfo signatureInfo) {
+        SignatureConfig signatureConfig = signatureInfo.getSignatureConfig();
+        List<X509Certificate> chain = signatureConfig.getSigningCertificateChain();
+
+        List<Object> key = Arrays.asList(
+            chain == null || chain.isEmpty() ? null : chain.get(0),
+            signatureConfig.isXadesIssuerNameNoReverseOrder(),
+            signatureConfig.getXadesDigestAlgo(),
+            signatureConfig.getDigestAlgo(),
+            signatureConfig.getXadesRole(),
+            signatureConfig.getSignaturePolicyService(),
+            signatureConfig.isXadesSignaturePolicyImplied(),
+            signatureConfig.getSignatureDescription() != null,
+            new HashMap<>(dataObjectFormatMimeTypes)
+        );
+
+        QualifyingPropertiesTemplate template = this.template;
+        if (template == null || !template.key.equals(key)) {
+            QualifyingPropertiesType qualifyingProperties = createQualifyingProperties(signatureInfo);
+            template = new QualifyingPropertiesTemplate(key, importNode(DocumentHelper.createDocument(), qualifyingProperties));
+            this.template = template;
+        }
+        return template;
+    }
+
+    private QualifyingPropertiesType createQualifyingProperties(SignatureInfo signatureInfo) {
+        SignatureConfig signatureConfig = signatureInfo.getSignatureConfig();
+
         // QualifyingProperties
         QualifyingPropertiesDocument qualDoc = QualifyingPropertiesDocument.Factory.newInstance();
         QualifyingPropertiesType qualifyingProperties = qualDoc.addNewQualifyingProperties();
@@ -141,11 +268,11 @@ public class XAdES2SignatureFacet implements SignatureFacet {
 
         addCommitType(signatureInfo, signedProperties);
 
-        // add XAdES ds:Object
-        objects.add(addXadesObject(signatureInfo, document, qualifyingProperties));
+        return qualifyingProperties;
+    }
 
-        // add XAdES ds:Reference
-        references.add(addXadesReference(signatureInfo));
+    private static Element getXadesElement(Element parent, String localName) {
+        return (Element)parent.getElementsByTagNameNS(XADES_NS, localName).item(0);
     }
 
     private void addSigningTime(SignatureInfo signatureInfo, SignedSignaturePropertiesType signedSignatureProperties) {
@@ -254,8 +381,7 @@ public class XAdES2SignatureFacet implements SignatureFacet {
         }
     }
 
-    private XMLObject addXadesObject(SignatureInfo signatureInfo, Document document, QualifyingPropertiesType qualifyingProperties) {
-        Element qualDocEl = importNode(document, qualifyingProperties);
+    private XMLObject addXadesObject(SignatureInfo signatureInfo, Element qualDocEl) {
         List<XMLStructure> xadesObjectContent = singletonList(new DOMStructure(qualDocEl));
         return signatureInfo.getSignatureFactory().newXMLObject(xadesObjectContent, null, null, null);
     }
@@ -287,12 +413,28 @@ public class XAdES2SignatureFacet implements SignatureFacet {
 
     /**
      * Gives back the JAXB CertID data structure.
+     * The issuer name and certificate digest are cached per certificate instance.
      */
     protected static void setCertID
     (CertIDType certId, SignatureConfig signatureConfig, boolean issuerNameNoReverseOrder, X509Certificate certificate) {
+        HashAlgorithm digestAlgo = signatureConfig.getXadesDigestAlgo();
+        CertIDKey key = new CertIDKey(certificate, digestAlgo, issuerNameNoReverseOrder);
+        CertIDValue value = CERT_ID_CACHE.computeIfAbsent(key, XAdES2SignatureFacet::createCertID);
+
         X509IssuerSerialType issuerSerial = certId.addNewIssuerSerial();
+        issuerSerial.setX509IssuerName(value.issuerName);
+        issuerSerial.setX509SerialNumber(value.serialNumber);
+
+        DigestAlgAndValueType certDigest = certId.addNewCertDigest();
+        DigestMethodType digestMethod = certDigest.addNewDigestMethod();
+        digestMethod.setAlgorithm(SignatureConfig.getDigestMethodUri(digestAlgo));
+        certDigest.setDigestValue(value.digestValue);
+    }
+
+    private static CertIDValue createCertID(CertIDKey key) {
+        X509Certificate certificate = key.certificate;
         String issuerName;
-        if (issuerNameNoReverseOrder) {
+        if (key.issuerNameNoReverseOrder) {
             /*
              * Make sure the DN is encoded using the same order as present
              * within the certificate. This is an Office2010 work-around.
@@ -306,8 +448,6 @@ public class XAdES2SignatureFacet implements SignatureFacet {
         } else {
             issuerName = certificate.getIssuerX500Principal().toString();
         }
-        issuerSerial.setX509IssuerName(issuerName);
-        issuerSerial.setX509SerialNumber(certificate.getSerialNumber());
 
         byte[] encodedCertificate;
         try {
@@ -316,8 +456,10 @@ public class XAdES2SignatureFacet implements SignatureFacet {
             throw new RuntimeException("certificate encoding error: "
                 + e.getMessage(), e);
         }
-        DigestAlgAndValueType certDigest = certId.addNewCertDigest();
-        setDigestAlgAndValue(certDigest, encodedCertificate, signatureConfig.getXadesDigestAlgo());
+        MessageDigest messageDigest = CryptoFunctions.getMessageDigest(key.digestAlgo);
+        byte[] digestValue = messageDigest.digest(encodedCertificate);
+
+        return new CertIDValue(issuerName, certificate.getSerialNumber(), digestValue);
     }
 
     /**
@@ -344,7 +486,7 @@ public class XAdES2SignatureFacet implements SignatureFacet {
     /**
      * Workaround for Document.importNode, which causes SIGSEGV in JDK14 (Ubuntu)
      */
-    private static Element importNode(Document document, XmlObject xo) {
+    static Element importNode(Document document, XmlObject xo) {
         XmlCursor cur = xo.newCursor();
         try {
             QName elName = cur.getName();
@@ -1,33 +1,22 @@
 package de.kiwiwings.poi.xwpf;
 
 import static org.apache.poi.ooxml.POIXMLTypeLoader.DEFAULT_XML_OPTIONS;
-import static org.apache.poi.openxml4j.opc.PackageRelationshipTypes.IMAGE_PART;
 
-import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Map;
 
-import javax.imageio.ImageIO;
 import javax.xml.namespace.QName;
 
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
-import org.apache.poi.openxml4j.opc.OPCPackage;
-import org.apache.poi.openxml4j.opc.PackagePart;
-import org.apache.poi.openxml4j.opc.PackagePartName;
-import org.apache.poi.openxml4j.opc.PackageRelationship;
-import org.apache.poi.openxml4j.opc.PackagingURIHelper;
-import org.apache.poi.openxml4j.opc.TargetMode;
 import org.apache.poi.sl.usermodel.PictureData;
 import org.apache.poi.util.Dimension2DDouble;
-import org.apache.poi.util.IOUtils;
 import org.apache.poi.util.Units;
 import org.apache.poi.xslf.draw.SVGImageRenderer;
 import org.apache.poi.xwpf.usermodel.XWPFDocument;
@@ -46,44 +35,97 @@ public class AddSvgToDocument {
         File tmplDocx = new File(args[0]);
         File svgFile = new File(args[1]);
         File outDocx = new File(args[2]);
+        // an optional cache directory, so repeated runs skip the rendering of the PNG fallback
+        SvgRenderCache cache = null;
+        if (args.length > 3) {
+            cache = new SvgRenderCache(0);
+            cache.setDirectory(new File(args[3]));
+            // an optional PNG encoder - default, fast or small
+            if (args.length > 4) {
+                cache.setEncoder(PngFallbackEncoder.forId(args[4]));
+            }
+        }
 
         try (FileInputStream fis = new FileInputStream(tmplDocx);
              XWPFDocument doc = new XWPFDocument(fis)) {
 
-            SVGImageRenderer rnd = new SVGImageRenderer();
-            try (FileInputStream fis2 = new FileInputStream(svgFile)) {
-                rnd.loadImage(fis2, PictureData.PictureType.SVG.contentType);
+            addSvgPicture(new MediaPartIndex(doc), svgFile, 500, cache);
+
+            try (FileOutputStream fos = new FileOutputStream(outDocx)) {
+                doc.write(fos);
             }
+        }
+    }
 
-            Rectangle2D nativeDim = rnd.getNativeBounds();
-            double widthPx = 500;
-            double heightPx = widthPx * nativeDim.getHeight() / nativeDim.getWidth();
+    /**
+     * Adds the SVG image with a PNG fallback to a new paragraph at the end of the document.
+     * An identical SVG or PNG, which is already embedded, is referenced instead of copied.
+     *
+     * @param media the media index of the document
+     * @param widthPx the width of the picture and its PNG fallback, the height is scaled accordingly
+     * @param cache the cache of the PNG fallbacks or {@code null} to render the image
+     */
+    public static XWPFPicture addSvgPicture(MediaPartIndex media, File svgFile, double widthPx, SvgRenderCache cache) throws IOException, InvalidFormatException {
+        SvgRenderCache.Rendering rendering = (cache == null) ? SvgRenderCache.render(svgFile, widthPx) : cache.get(svgFile, widthPx);
+        return addSvgPicture(media, media.getDocument().createParagraph().createRun(), svgFile, rendering);
+    }
 
-            BufferedImage bi = rnd.getImage(new Dimension2DDouble(widthPx, heightPx));
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(100_000);
-            ImageIO.write(bi, "PNG", bos);
+    /**
+     * Adds the SVG image with a pre-rendered PNG fallback to a new paragraph at the end of the document.
+     * The SVG isn't parsed, the height is scaled by the aspect ratio of the PNG.
+     *
+     * @param media the media index of the document
+     * @param pngFallback the pre-rendered PNG fallback
+     * @param widthPx the width of the picture
+     */
+    public static XWPFPicture addSvgPicture(MediaPartIndex media, File svgFile, File pngFallback, double widthPx) throws IOException, InvalidFormatException {
+        SvgRenderCache.Rendering rendering = SvgRenderCache.prerendered(pngFallback, widthPx);
+        return addSvgPicture(media, media.getDocument().createParagraph().createRun(), svgFile, rendering);
+    }
 
-            XWPFRun run = doc.createParagraph().createRun();
+    /**
+     * Adds the rendered SVG image to the run
+     */
+    static XWPFPicture addSvgPicture(MediaPartIndex media, XWPFRun run, File svgFile, SvgRenderCache.Rendering rendering) throws IOException, InvalidFormatException {
+        int widthEmu = Units.pixelToEMU((int)rendering.getWidthPx());
+        int heightEmu = Units.pixelToEMU((int)rendering.getHeightPx());
+        XWPFPicture pic = run.addPicture(rendering.getPngStream(), PictureData.PictureType.PNG.ooxmlId, "image.png", widthEmu, heightEmu);
+        CTOfficeArtExtensionList extLst = pic.getCTPicture().getBlipFill().getBlip().addNewExtLst();
+        addExt(extLst, "{28A0092B-C50C-407E-A947-70E740481C1C}"
+            , "http://schemas.microsoft.com/office/drawing/2010/main", "a14:useLocalDpi"
+            , "val", "0");
+
+        addExt(extLst, "{96DAC541-7B7A-43D3-8B79-37D633B846F1}"
+            , "http://schemas.microsoft.com/office/drawing/2016/SVG/main", "asvg:svgBlip"
+            , "r:embed", media.addSvg(svgFile));
+
+        return pic;
+    }
 
-            int widthEmu = Units.pixelToEMU((int)widthPx);
-            int heightEmu = Units.pixelToEMU((int)heightPx);
-            XWPFPicture pic = run.addPicture(new ByteArrayInputStream(bos.toByteArray()), PictureData.PictureType.PNG.ooxmlId, "image.png", widthEmu, heightEmu);
-            CTOfficeArtExtensionList extLst = pic.getCTPicture().getBlipFill().getBlip().addNewExtLst();
-            addExt(extLst, "{28A0092B-C50C-407E-A947-70E740481C1C}"
-                , "http://schemas.microsoft.com/office/drawing/2010/main", "a14:useLocalDpi"
-                , "val", "0");
+    static SVGImageRenderer loadSvg(File svgFile) throws IOException {
+        try (FileInputStream fis = new FileInputStream(svgFile)) {
+            return loadSvg(fis);
+        }
+    }
 
-            addExt(extLst, "{96DAC541-7B7A-43D3-8B79-37D633B846F1}"
-                , "http://schemas.microsoft.com/office/drawing/2016/SVG/main", "asvg:svgBlip"
-                , "r:embed", addSVG(doc, svgFile));
+    static SVGImageRenderer loadSvg(byte[] svg) throws IOException {
+        return loadSvg(new ByteArrayInputStream(svg));
+    }
 
-            try (FileOutputStream fos = new FileOutputStream(outDocx)) {
-                doc.write(fos);
-            }
-        }
+    private static SVGImageRenderer loadSvg(InputStream is) throws IOException {
+        SVGImageRenderer rnd = new SVGImageRenderer();
+        rnd.loadImage(is, PictureData.PictureType.SVG.contentType);
+        return rnd;
     }
 
+    static void renderPng(SVGImageRenderer rnd, double widthPx, double heightPx, OutputStream os) throws IOException {
+        renderPng(rnd, widthPx, heightPx, PngFallbackEncoder.DEFAULT, os);
+    }
 
+    static void renderPng(SVGImageRenderer rnd, double widthPx, double heightPx, PngFallbackEncoder encoder, OutputStream os) throws IOException {
+        BufferedImage bi = rnd.getImage(new Dimension2DDouble(widthPx, heightPx));
+        encoder.encode(bi, os);
+    }
 
     private static void addExt(CTOfficeArtExtensionList extLst, String uri, String namespace, String name, String attribute, String value) {
         CTOfficeArtExtension ext = extLst.addNewExt();
@@ -107,20 +149,4 @@ public class AddSvgToDocument {
         }
         cur.dispose();
     }
-
-    private static String addSVG(XWPFDocument doc, File svgFile) throws InvalidFormatException, IOException {
-        // SVG is not thoroughly supported as of POI 5.0.0, hence we need to go the long way instead of adding a picture
-        OPCPackage pkg = doc.getPackage();
-        String svgNameTmpl = "/word/media/image#.svg";
-        int svgImageIdx = pkg.getUnusedPartIndex(svgNameTmpl);
-        PackagePartName svgPPName = PackagingURIHelper.createPartName(svgNameTmpl.replace("#", Integer.toString(svgImageIdx)));
-        PackagePart svgPart = pkg.createPart(svgPPName, PictureData.PictureType.SVG.contentType);
-
-        try (FileInputStream fis = new FileInputStream(svgFile);
-             OutputStream os = svgPart.getOutputStream()) {
-            IOUtils.copy(fis, os);
-        }
-        PackageRelationship svgRel = doc.getPackagePart().addRelationship(svgPPName, TargetMode.INTERNAL, IMAGE_PART);
-        return svgRel.getId();
-    }
 }
@@ -0,0 +1,178 @@
+package de.kiwiwings.poi.xwpf;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder, which trades size for speed.
+ *
+ * The ImageIO writer tries all five PNG filters for each row and keeps the best. This encoder always uses the
+ * "Up" filter, which suits the horizontal bands of charts and diagrams, and streams the deflated rows as IDAT
+ * chunks to the output. Images with at most 256 colors are written as indexed images without a filter.
+ */
+public class FastPngEncoder implements PngFallbackEncoder {
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int COLOR_TYPE_INDEXED = 3;
+    private static final int COLOR_TYPE_RGBA = 6;
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_UP = 2;
+
+    private final String id;
+    private final int deflateLevel;
+    private final boolean palette;
+
+    /**
+     * @param id the id of the encoder
+     * @param deflateLevel the deflate level from 0 to 9
+     * @param palette {@code true}, to write an indexed image if the image has at most 256 colors
+     */
+    public FastPngEncoder(String id, int deflateLevel, boolean palette) {
+        if (deflateLevel < 0 || deflateLevel > 9) {
+            throw new IllegalArgumentException("invalid deflate level: " + deflateLevel);
+        }
+        this.id = id;
+        this.deflateLevel = deflateLevel;
+        this.palette = palette;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void encode(BufferedImage image, OutputStream os) throws IOException {
+        BufferedImage indexed = palette ? ImageIOPngEncoder.toIndexed(image) : null;
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeLong(SIGNATURE);
+        ByteBuffer ihdr = ByteBuffer.allocate(13)
+            .putInt(width).putInt(height)
+            // bit depth, color type, compression, filter and interlace method
+            .put((byte)8).put((byte)(indexed != null ? COLOR_TYPE_INDEXED : COLOR_TYPE_RGBA))
+            .put((byte)0).put((byte)0).put((byte)0);
+        writeChunk(out, "IHDR", ihdr.array(), 13);
+        if (indexed != null) {
+            writePalette(out, (IndexColorModel)indexed.getColorModel());
+        }
+
+        Deflater deflater = new Deflater(deflateLevel);
+        try (IdatWriter idat = new IdatWriter(out, deflater)) {
+            if (indexed != null) {
+                byte[] indices = ((DataBufferByte)indexed.getRaster().getDataBuffer()).getData();
+                byte[] filter = { FILTER_NONE };
+                for (int y = 0; y < height; y++) {
+                    idat.write(filter, 1);
+                    idat.write(indices, y * width, width);
+                }
+            } else {
+                int[] argb = new int[width];
+                byte[] prev = new byte[width * 4 + 1];
+                byte[] cur = new byte[width * 4 + 1];
+                byte[] filtered = new byte[width * 4 + 1];
+                filtered[0] = FILTER_UP;
+                for (int y = 0; y < height; y++) {
+                    image.getRGB(0, y, width, 1, argb, 0, width);
+                    for (int x = 0, i = 1; x < width; x++, i += 4) {
+                        int c = argb[x];
+                        cur[i] = (byte)(c >>> 16);
+                        cur[i + 1] = (byte)(c >>> 8);
+                        cur[i + 2] = (byte)c;
+                        cur[i + 3] = (byte)(c >>> 24);
+                    }
+                    for (int i = 1; i < cur.length; i++) {
+                        filtered[i] = (byte)(cur[i] - prev[i]);
+                    }
+                    idat.write(filtered, cur.length);
+                    byte[] tmp = prev;
+                    prev = cur;
+                    cur = tmp;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+
+        writeChunk(out, "IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    private static void writePalette(DataOutputStream out, IndexColorModel icm) throws IOException {
+        int size = icm.getMapSize();
+        byte[] plte = new byte[size * 3];
+        byte[] trns = new byte[size];
+        for (int i = 0; i < size; i++) {
+            plte[i * 3] = (byte)icm.getRed(i);
+            plte[i * 3 + 1] = (byte)icm.getGreen(i);
+            plte[i * 3 + 2] = (byte)icm.getBlue(i);
+            trns[i] = (byte)icm.getAlpha(i);
+        }
+        writeChunk(out, "PLTE", plte, plte.length);
+        writeChunk(out, "tRNS", trns, size);
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = { (byte)type.charAt(0), (byte)type.charAt(1), (byte)type.charAt(2), (byte)type.charAt(3) };
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int)crc.getValue());
+    }
+
+    /**
+     * Deflates the rows and writes an IDAT chunk, whenever the output buffer is full
+     */
+    private static final class IdatWriter implements AutoCloseable {
+        private final DataOutputStream out;
+        private final Deflater deflater;
+        private final byte[] buf = new byte[64 * 1024];
+        private int len;
+
+        IdatWriter(DataOutputStream out, Deflater deflater) {
+            this.out = out;
+            this.deflater = deflater;
+        }
+
+        void write(byte[] data, int length) throws IOException {
+            write(data, 0, length);
+        }
+
+        void write(byte[] data, int offset, int length) throws IOException {
+            deflater.setInput(data, offset, length);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            if (len > 0) {
+                writeChunk(out, "IDAT", buf, len);
+            }
+        }
+
+        private void deflate() throws IOException {
+            len += deflater.deflate(buf, len, buf.length - len);
+            if (len == buf.length) {
+                writeChunk(out, "IDAT", buf, len);
+                len = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package de.kiwiwings.poi.xwpf;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * PNG encoder based on the ImageIO writer with a configurable deflate level.
+ *
+ * Flat vector art often uses only a few colors. If enabled, such images are converted losslessly to an indexed
+ * image, which is a quarter of the truecolor data and deflates faster. Images with more than 256 colors, e.g.
+ * with gradients or a lot of anti-aliasing, are written as truecolor.
+ */
+public class ImageIOPngEncoder implements PngFallbackEncoder {
+    /** the deflate level of the ImageIO writer, if the compression isn't set explicitly */
+    static final int DEFAULT_LEVEL = 4;
+
+    private final String id;
+    private final int deflateLevel;
+    private final boolean palette;
+
+    /**
+     * @param id the id of the encoder
+     * @param deflateLevel the deflate level from 0 to 9
+     * @param palette {@code true}, to write an indexed image if the image has at most 256 colors
+     */
+    public ImageIOPngEncoder(String id, int deflateLevel, boolean palette) {
+        if (deflateLevel < 0 || deflateLevel > 9) {
+            throw new IllegalArgumentException("invalid deflate level: " + deflateLevel);
+        }
+        this.id = id;
+        this.deflateLevel = deflateLevel;
+        this.palette = palette;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void encode(BufferedImage image, OutputStream os) throws IOException {
+        BufferedImage indexed = palette ? toIndexed(image) : null;
+        BufferedImage img = (indexed != null) ? indexed : image;
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("PNG").next();
+        // ImageIO.createImageOutputStream would buffer the stream in a temporary file by default
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(os)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (deflateLevel != DEFAULT_LEVEL) {
+                // the writer maps the quality q to the deflate level 9 - round(9 * q)
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality((9 - deflateLevel) / 9f);
+            }
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * @return the indexed image or {@code null}, if the image has more than 256 colors
+     */
+    static BufferedImage toIndexed(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] indices = new byte[width * height];
+        Map<Integer,Integer> colors = new HashMap<>();
+        int[] argb = new int[256];
+        int[] row = new int[width];
+        // flat art has long runs of the same color, so the last lookup is remembered
+        int lastColor = 0, lastIndex = -1;
+        for (int y = 0, i = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++, i++) {
+                int c = row[x];
+                if (c != lastColor || lastIndex == -1) {
+                    Integer idx = colors.get(c);
+                    if (idx == null) {
+                        if (colors.size() == 256) {
+                            return null;
+                        }
+                        idx = colors.size();
+                        colors.put(c, idx);
+                        argb[idx] = c;
+                    }
+                    lastColor = c;
+                    lastIndex = idx;
+                }
+                indices[i] = (byte)lastIndex;
+            }
+        }
+
+        int size = colors.size();
+        byte[] r = new byte[size], g = new byte[size], b = new byte[size], a = new byte[size];
+        for (int i = 0; i < size; i++) {
+            a[i] = (byte)(argb[i] >>> 24);
+            r[i] = (byte)(argb[i] >>> 16);
+            g[i] = (byte)(argb[i] >>> 8);
+            b[i] = (byte)argb[i];
+        }
+        IndexColorModel icm = new IndexColorModel(8, size, r, g, b, a);
+        // the collected indices are the raster of the image
+        WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(indices, indices.length), width, height, width, 1, new int[]{0}, null);
+        return new BufferedImage(icm, raster, false, null);
+    }
+}
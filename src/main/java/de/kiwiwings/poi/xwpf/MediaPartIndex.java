@@ -0,0 +1,147 @@
+package de.kiwiwings.poi.xwpf;
+
+import static org.apache.poi.openxml4j.opc.PackageRelationshipTypes.IMAGE_PART;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.PackagePartName;
+import org.apache.poi.openxml4j.opc.PackageRelationship;
+import org.apache.poi.openxml4j.opc.PackagingURIHelper;
+import org.apache.poi.openxml4j.opc.TargetMode;
+import org.apache.poi.sl.usermodel.PictureData;
+import org.apache.poi.util.IOUtils;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+
+/**
+ * Index of the SVG media parts of a document, so an image, which is embedded many times, is only stored once.
+ *
+ * The parts are indexed by the SHA-256 digest of their content. The parts and image relationships of the main
+ * document part, which already exist, e.g. in a template, are indexed on first use. An identical SVG is referenced
+ * through the existing relationship of the part instead of a new copy.
+ *
+ * The PNG fallbacks don't need an index - {@link XWPFDocument#addPictureData(byte[], int)} already looks up
+ * identical picture data. An index is bound to its document and should be reused for all insertions into it.
+ */
+public class MediaPartIndex {
+    private static final String SVG_NAME_TMPL = "/word/media/image#.svg";
+
+    private final XWPFDocument doc;
+    private Map<String,PackagePart> partsByDigest;
+    private Map<PackagePartName,String> relationIds;
+    private int added, reused;
+
+    public MediaPartIndex(XWPFDocument doc) {
+        this.doc = doc;
+    }
+
+    public XWPFDocument getDocument() {
+        return doc;
+    }
+
+    /**
+     * Adds the SVG image as media part of the main document part, unless an identical part exists
+     *
+     * @return the relationship id of the SVG part
+     */
+    public String addSvg(byte[] svg) throws InvalidFormatException, IOException {
+        return addSvg(SvgRenderCache.digest(svg), os -> os.write(svg));
+    }
+
+    /**
+     * Adds the SVG file as media part of the main document part, unless an identical part exists.
+     * The file is digested and copied through its channel, so it isn't read into the heap.
+     *
+     * @return the relationship id of the SVG part
+     */
+    public String addSvg(File svgFile) throws InvalidFormatException, IOException {
+        return addSvg(SvgRenderCache.digest(svgFile), os -> {
+            try (FileChannel fc = FileChannel.open(svgFile.toPath(), StandardOpenOption.READ)) {
+                WritableByteChannel target = Channels.newChannel(os);
+                for (long pos = 0, size = fc.size(); pos < size; ) {
+                    pos += fc.transferTo(pos, size - pos, target);
+                }
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface PartContent {
+        void writeTo(OutputStream os) throws IOException;
+    }
+
+    private String addSvg(String digest, PartContent content) throws InvalidFormatException, IOException {
+        if (partsByDigest == null) {
+            indexParts();
+        }
+        PackagePart svgPart = partsByDigest.get(digest);
+        if (svgPart == null) {
+            // SVG is not thoroughly supported as of POI 5.0.0, hence we need to go the long way instead of adding a picture
+            OPCPackage pkg = doc.getPackage();
+            int svgImageIdx = pkg.getUnusedPartIndex(SVG_NAME_TMPL);
+            PackagePartName svgPPName = PackagingURIHelper.createPartName(SVG_NAME_TMPL.replace("#", Integer.toString(svgImageIdx)));
+            svgPart = pkg.createPart(svgPPName, PictureData.PictureType.SVG.contentType);
+            try (OutputStream os = svgPart.getOutputStream()) {
+                content.writeTo(os);
+            }
+            partsByDigest.put(digest, svgPart);
+            added++;
+        } else {
+            reused++;
+        }
+
+        String relId = relationIds.get(svgPart.getPartName());
+        if (relId == null) {
+            PackageRelationship svgRel = doc.getPackagePart().addRelationship(svgPart.getPartName(), TargetMode.INTERNAL, IMAGE_PART);
+            relId = svgRel.getId();
+            relationIds.put(svgPart.getPartName(), relId);
+        }
+        return relId;
+    }
+
+    /**
+     * @return the number of SVG parts, which were added to the document
+     */
+    public int getAddedParts() {
+        return added;
+    }
+
+    /**
+     * @return the number of insertions, which referenced an existing SVG part
+     */
+    public int getReusedParts() {
+        return reused;
+    }
+
+    private void indexParts() throws InvalidFormatException, IOException {
+        partsByDigest = new HashMap<>();
+        relationIds = new HashMap<>();
+        for (PackagePart part : doc.getPackage().getPartsByContentType(PictureData.PictureType.SVG.contentType)) {
+            try (InputStream is = part.getInputStream()) {
+                partsByDigest.putIfAbsent(SvgRenderCache.digest(IOUtils.toByteArray(is)), part);
+            }
+        }
+        PackagePart docPart = doc.getPackagePart();
+        for (PackageRelationship rel : docPart.getRelationshipsByType(IMAGE_PART)) {
+            if (rel.getTargetMode() != TargetMode.INTERNAL) {
+                continue;
+            }
+            try {
+                relationIds.putIfAbsent(docPart.getRelatedPart(rel).getPartName(), rel.getId());
+            } catch (IllegalArgumentException e) {
+                // dangling relationship of the template - a new relationship is added, if needed
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package de.kiwiwings.poi.xwpf;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes the rasterized SVG image as PNG fallback
+ */
+public interface PngFallbackEncoder {
+    /** ImageIO with its default settings, i.e. truecolor and deflate level 4 */
+    PngFallbackEncoder DEFAULT = new ImageIOPngEncoder("default", ImageIOPngEncoder.DEFAULT_LEVEL, false);
+
+    /** fixed row filter, low deflate level and an indexed image, if the picture has at most 256 colors */
+    PngFallbackEncoder FAST = new FastPngEncoder("fast", Deflater.BEST_SPEED, true);
+
+    /** highest deflate level and an indexed image, if the picture has at most 256 colors */
+    PngFallbackEncoder SMALL = new ImageIOPngEncoder("small", Deflater.BEST_COMPRESSION, true);
+
+    /**
+     * @return the id of the encoder and its settings - the renderings of the encoders are cached separately
+     */
+    String getId();
+
+    void encode(BufferedImage image, OutputStream os) throws IOException;
+
+    /**
+     * @param id the id of a predefined encoder, i.e. default, fast or small
+     */
+    static PngFallbackEncoder forId(String id) {
+        for (PngFallbackEncoder enc : new PngFallbackEncoder[]{ DEFAULT, FAST, SMALL }) {
+            if (enc.getId().equalsIgnoreCase(id)) {
+                return enc;
+            }
+        }
+        throw new IllegalArgumentException("unknown PNG encoder: " + id);
+    }
+}
@@ -0,0 +1,140 @@
+package de.kiwiwings.poi.xwpf;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.xwpf.usermodel.XWPFParagraph;
+import org.apache.poi.xwpf.usermodel.XWPFPicture;
+import org.apache.poi.xwpf.usermodel.XWPFRun;
+
+/**
+ * Inserts many SVG images with their PNG fallbacks into a document.
+ *
+ * The SVGs are read, parsed and rasterized in parallel on a fixed pool, as the Batik rendering is cpu bound.
+ * Afterwards the pictures are attached to the document on the calling thread in the order of the list, as the
+ * document isn't thread-safe. Identical images of a batch, i.e. the same file and width, are only rendered once.
+ */
+public class SvgBatchInserter implements Closeable {
+    /**
+     * A SVG image and its position in the document
+     */
+    public static final class Insertion {
+        private final File svgFile;
+        private final double widthPx;
+        private final XWPFParagraph anchor;
+
+        /**
+         * @param svgFile the SVG image
+         * @param widthPx the width of the picture and its PNG fallback, the height is scaled accordingly
+         * @param anchor the paragraph, to which the picture is appended, or {@code null} to append a new paragraph
+         *  at the end of the document
+         */
+        public Insertion(File svgFile, double widthPx, XWPFParagraph anchor) {
+            this.svgFile = svgFile;
+            this.widthPx = widthPx;
+            this.anchor = anchor;
+        }
+
+        private String renderKey() {
+            return svgFile.getAbsolutePath() + "|" + widthPx;
+        }
+    }
+
+    private final ExecutorService executor;
+    private SvgRenderCache cache;
+    private PngFallbackEncoder encoder = PngFallbackEncoder.DEFAULT;
+
+    /**
+     * @param threads the number of rendering threads - usually the number of cores
+     */
+    public SvgBatchInserter(int threads) {
+        AtomicInteger idx = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "SvgBatchInserter-" + idx.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param cache the cache of the PNG fallbacks or {@code null} to render all images
+     */
+    public void setCache(SvgRenderCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param encoder the encoder of the PNG fallbacks, if no cache is set - the cache uses its own encoder
+     */
+    public void setEncoder(PngFallbackEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * Renders the images in parallel and adds them to the document of the media index
+     *
+     * @return the pictures in the order of the insertions
+     */
+    public List<XWPFPicture> insert(MediaPartIndex media, List<Insertion> insertions) throws IOException, InvalidFormatException {
+        SvgRenderCache c = cache;
+        PngFallbackEncoder enc = encoder;
+        Map<String,Future<SvgRenderCache.Rendering>> tasks = new HashMap<>();
+        for (Insertion ins : insertions) {
+            tasks.computeIfAbsent(ins.renderKey(), k -> executor.submit(() ->
+                (c == null) ? SvgRenderCache.render(ins.svgFile, ins.widthPx, enc) : c.get(ins.svgFile, ins.widthPx)));
+        }
+
+        try {
+            List<XWPFPicture> pictures = new ArrayList<>(insertions.size());
+            for (Insertion ins : insertions) {
+                SvgRenderCache.Rendering rendering = await(tasks.get(ins.renderKey()));
+                XWPFRun run = (ins.anchor == null)
+                    ? media.getDocument().createParagraph().createRun()
+                    : ins.anchor.createRun();
+                pictures.add(AddSvgToDocument.addSvgPicture(media, run, ins.svgFile, rendering));
+            }
+            return pictures;
+        } finally {
+            // don't leave the pool busy with the renderings of a failed batch
+            tasks.values().forEach(f -> f.cancel(true));
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static SvgRenderCache.Rendering await(Future<SvgRenderCache.Rendering> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("SVG rendering was interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException)cause : new IOException(cause);
+        }
+    }
+}
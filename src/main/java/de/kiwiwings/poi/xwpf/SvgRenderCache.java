@@ -0,0 +1,386 @@
+package de.kiwiwings.poi.xwpf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.io.output.UnsynchronizedByteArrayOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.xslf.draw.SVGImageRenderer;
+
+/**
+ * Cache of the PNG fallbacks of SVG images, keyed by the SHA-256 digest of the SVG content and the target width.
+ *
+ * A hit skips the Batik parsing and the rasterization - the PNG and the native bounds of the SVG are taken from
+ * the cache. The least recently used renderings are evicted, when the in-memory tier exceeds its byte budget.
+ * If a directory is set, the renderings are also stored there, so other processes and restarts reuse them.
+ * Concurrent lookups of the same key wait for the first one, so an image is only rendered once.
+ */
+public class SvgRenderCache {
+    private static final Logger LOG = LogManager.getLogger(SvgRenderCache.class);
+    private static final int FILE_VERSION = 1;
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int IHDR = 0x49484452;
+
+    /**
+     * The PNG fallback of a SVG image
+     */
+    public static final class Rendering {
+        // chunked buffer, which is read without copying it into one array
+        private final UnsynchronizedByteArrayOutputStream png;
+        private final double nativeWidth;
+        private final double nativeHeight;
+        private final double widthPx;
+
+        Rendering(UnsynchronizedByteArrayOutputStream png, double nativeWidth, double nativeHeight, double widthPx) {
+            this.png = png;
+            this.nativeWidth = nativeWidth;
+            this.nativeHeight = nativeHeight;
+            this.widthPx = widthPx;
+        }
+
+        /**
+         * @return a stream of the encoded PNG, which reads the shared buffer
+         */
+        public InputStream getPngStream() {
+            return png.toInputStream();
+        }
+
+        public int getPngSize() {
+            return png.size();
+        }
+
+        public void writePng(OutputStream os) throws IOException {
+            png.writeTo(os);
+        }
+
+        public double getNativeWidth() {
+            return nativeWidth;
+        }
+
+        public double getNativeHeight() {
+            return nativeHeight;
+        }
+
+        public double getWidthPx() {
+            return widthPx;
+        }
+
+        /**
+         * @return the height of the PNG, i.e. the width scaled by the aspect ratio of the native bounds
+         */
+        public double getHeightPx() {
+            return widthPx * nativeHeight / nativeWidth;
+        }
+    }
+
+    /** the lock of a key, so a key is only rendered by one thread at a time */
+    private static final class Holder {
+        private volatile Rendering rendering;
+    }
+
+    private final Map<String,Holder> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long cachedBytes;
+    private Path directory;
+    private PngFallbackEncoder encoder = PngFallbackEncoder.DEFAULT;
+
+    /**
+     * @param maxBytes the maximum size of the PNGs in the in-memory tier
+     */
+    public SvgRenderCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param directory the directory of the on-disk tier or {@code null} to only cache in memory
+     */
+    public void setDirectory(File directory) throws IOException {
+        if (directory == null) {
+            this.directory = null;
+        } else {
+            this.directory = Files.createDirectories(directory.toPath());
+        }
+    }
+
+    /**
+     * @param encoder the encoder of the PNG fallbacks - the key of a rendering includes the encoder id
+     */
+    public void setEncoder(PngFallbackEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * Returns the PNG fallback of the SVG image - the image is only parsed and rendered on a cache miss
+     *
+     * @param svg the SVG content
+     * @param widthPx the width of the PNG, the height is scaled accordingly
+     */
+    public Rendering get(byte[] svg, double widthPx) throws IOException {
+        PngFallbackEncoder enc = encoder;
+        return get(digest(svg), widthPx, enc, () -> render(AddSvgToDocument.loadSvg(svg), widthPx, enc));
+    }
+
+    /**
+     * Returns the PNG fallback of the SVG file - the file is digested without reading it into the heap and
+     * only parsed and rendered on a cache miss
+     *
+     * @param svgFile the SVG image
+     * @param widthPx the width of the PNG, the height is scaled accordingly
+     */
+    public Rendering get(File svgFile, double widthPx) throws IOException {
+        PngFallbackEncoder enc = encoder;
+        return get(digest(svgFile), widthPx, enc, () -> render(svgFile, widthPx, enc));
+    }
+
+    @FunctionalInterface
+    private interface Renderer {
+        Rendering render() throws IOException;
+    }
+
+    private Rendering get(String digest, double widthPx, PngFallbackEncoder enc, Renderer renderer) throws IOException {
+        String key = digest + "-" + widthPx + "-" + enc.getId();
+        Holder holder = getHolder(key);
+        synchronized (holder) {
+            Rendering rendering = holder.rendering;
+            if (rendering != null) {
+                hits.increment();
+                return rendering;
+            }
+            rendering = readFile(key);
+            if (rendering != null) {
+                diskHits.increment();
+            } else {
+                misses.increment();
+                rendering = renderer.render();
+                writeFile(key, rendering);
+            }
+            added(key, holder, rendering);
+            return rendering;
+        }
+    }
+
+    /**
+     * Parses and renders the SVG image without a cache
+     */
+    public static Rendering render(byte[] svg, double widthPx) throws IOException {
+        return render(AddSvgToDocument.loadSvg(svg), widthPx, PngFallbackEncoder.DEFAULT);
+    }
+
+    /**
+     * Parses and renders the SVG file without a cache
+     */
+    public static Rendering render(File svgFile, double widthPx) throws IOException {
+        return render(svgFile, widthPx, PngFallbackEncoder.DEFAULT);
+    }
+
+    /**
+     * Parses and renders the SVG file without a cache
+     */
+    public static Rendering render(File svgFile, double widthPx, PngFallbackEncoder encoder) throws IOException {
+        return render(AddSvgToDocument.loadSvg(svgFile), widthPx, encoder);
+    }
+
+    /**
+     * Reuses a pre-rendered PNG fallback - the SVG isn't parsed, so the aspect ratio is taken from the PNG header
+     *
+     * @param pngFile the PNG fallback
+     * @param widthPx the width of the picture
+     */
+    public static Rendering prerendered(File pngFile, double widthPx) throws IOException {
+        UnsynchronizedByteArrayOutputStream png = new UnsynchronizedByteArrayOutputStream((int)Math.min(pngFile.length(), Integer.MAX_VALUE - 8));
+        try (InputStream is = Files.newInputStream(pngFile.toPath())) {
+            png.write(is);
+        }
+        // the signature is followed by the IHDR chunk: length, type, width, height
+        try (DataInputStream dis = new DataInputStream(png.toInputStream())) {
+            if (dis.readLong() != PNG_SIGNATURE || dis.readInt() != 13 || dis.readInt() != IHDR) {
+                throw new IOException("not a PNG file: " + pngFile);
+            }
+            double width = dis.readInt() & 0xFFFFFFFFL;
+            double height = dis.readInt() & 0xFFFFFFFFL;
+            return new Rendering(png, width, height, widthPx);
+        }
+    }
+
+    private static Rendering render(SVGImageRenderer rnd, double widthPx, PngFallbackEncoder encoder) throws IOException {
+        double nativeWidth = rnd.getNativeBounds().getWidth();
+        double nativeHeight = rnd.getNativeBounds().getHeight();
+        UnsynchronizedByteArrayOutputStream bos = new UnsynchronizedByteArrayOutputStream(64 * 1024);
+        AddSvgToDocument.renderPng(rnd, widthPx, widthPx * nativeHeight / nativeWidth, encoder, bos);
+        return new Rendering(bos, nativeWidth, nativeHeight, widthPx);
+    }
+
+    /**
+     * @return the number of lookups, which were answered by the in-memory tier
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups, which were answered by the on-disk tier
+     */
+    public long getDiskHits() {
+        return diskHits.sum();
+    }
+
+    /**
+     * @return the number of lookups, which needed to render the image
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Clears the in-memory tier - the files of the on-disk tier are kept
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    private Holder getHolder(String key) {
+        synchronized (cache) {
+            return cache.computeIfAbsent(key, k -> new Holder());
+        }
+    }
+
+    private void added(String key, Holder holder, Rendering rendering) {
+        synchronized (cache) {
+            holder.rendering = rendering;
+            // the holder might have been evicted or cleared while it was rendered - then it isn't cached anymore
+            if (cache.get(key) != holder) {
+                return;
+            }
+            cachedBytes += rendering.getPngSize();
+            // the most recently used entry is kept, even if it exceeds the budget on its own.
+            // keys, which are still rendered, are kept too - otherwise a concurrent lookup would render them again
+            Iterator<Holder> iter = cache.values().iterator();
+            while (cachedBytes > maxBytes && iter.hasNext()) {
+                Holder h = iter.next();
+                Rendering evicted = h.rendering;
+                if (h != holder && evicted != null) {
+                    iter.remove();
+                    cachedBytes -= evicted.getPngSize();
+                }
+            }
+        }
+    }
+
+    private Rendering readFile(String key) {
+        if (directory == null) {
+            return null;
+        }
+        Path file = directory.resolve(key + ".bin");
+        try (InputStream is = Files.newInputStream(file);
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(is))) {
+            if (dis.readInt() != FILE_VERSION) {
+                return null;
+            }
+            double nativeWidth = dis.readDouble();
+            double nativeHeight = dis.readDouble();
+            double widthPx = dis.readDouble();
+            int size = dis.readInt();
+            UnsynchronizedByteArrayOutputStream png = new UnsynchronizedByteArrayOutputStream(size);
+            if (png.write(dis) != size) {
+                throw new EOFException("truncated PNG");
+            }
+            return new Rendering(png, nativeWidth, nativeHeight, widthPx);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOG.atWarn().withThrowable(e).log("can't read cached rendering {} - rendering it again", file);
+            return null;
+        }
+    }
+
+    private void writeFile(String key, Rendering rendering) {
+        if (directory == null) {
+            return;
+        }
+        Path file = directory.resolve(key + ".bin");
+        try {
+            // written to a temporary file and moved, so concurrent readers don't see partial files
+            Path tmp = Files.createTempFile(directory, key, ".tmp");
+            try (OutputStream os = Files.newOutputStream(tmp);
+                 DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os))) {
+                dos.writeInt(FILE_VERSION);
+                dos.writeDouble(rendering.nativeWidth);
+                dos.writeDouble(rendering.nativeHeight);
+                dos.writeDouble(rendering.widthPx);
+                dos.writeInt(rendering.getPngSize());
+                rendering.writePng(dos);
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LOG.atWarn().withThrowable(e).log("can't write cached rendering {}", file);
+        }
+    }
+
+    static String digest(byte[] svg) {
+        return toHex(newDigest().digest(svg));
+    }
+
+    /**
+     * @return the digest of the memory-mapped file
+     */
+    static String digest(File file) throws IOException {
+        MessageDigest md = newDigest();
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            md.update(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+        }
+        return toHex(md.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] md) {
+        StringBuilder sb = new StringBuilder(md.length * 2);
+        for (byte b : md) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
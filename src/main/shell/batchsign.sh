@@ -0,0 +1,3 @@
+#!/bin/bash
+
+java -Dorg.apache.xml.security.ignoreLineBreaks=true -cp poi-examples-1.0-SNAPSHOT.jar:lib/* de.kiwiwings.poi.dsig.BatchSigner keystore.pfx storePass keyPass input output
\ No newline at end of file